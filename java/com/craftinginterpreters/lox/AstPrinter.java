@@ -19,6 +19,141 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
   String print(Stmt stmt) {
     return stmt.accept(this);
   }
+
+  // the top-level statements of a flat ast(see FlatAst), one a line, the same
+  // as printing them as objects. it walks the arrays, no node is decoded
+  String print(FlatAst ast) {
+    StringBuilder builder = new StringBuilder();
+    int root = ast.root();
+    for (int i = 0; i < ast.listSize(root); i++) {
+      print(ast, ast.listItem(root, i), builder);
+      builder.append("\n");
+    }
+    return builder.toString();
+  }
+
+  private void print(FlatAst ast, int node, StringBuilder builder) {
+    // what each operand is depends on the kind(see FlatAst)
+    int a = ast.operand(node, 0);
+    int b = ast.operand(node, 1);
+    int c = ast.operand(node, 2);
+    switch (ast.kind(node)) {
+      case Expr.ASSIGN:
+        builder.append("(= ").append(ast.constant(a));
+        child(ast, b, builder);
+        break;
+      case Expr.BINARY:
+      case Expr.LOGICAL:
+        builder.append("(").append(ast.constant(c));
+        child(ast, a, builder);
+        child(ast, b, builder);
+        break;
+      case Expr.CALL:
+        builder.append("(call");
+        child(ast, a, builder);
+        // the arguments are a list part(see transform), which starts with a space
+        builder.append(" ");
+        for (int i = 0; i < ast.listSize(b); i++) child(ast, ast.listItem(b, i), builder);
+        break;
+      case Expr.GET:
+        builder.append("(.");
+        child(ast, a, builder);
+        builder.append(" ").append(ast.constant(b));
+        break;
+      case Expr.GROUPING:
+        builder.append("(group");
+        child(ast, a, builder);
+        break;
+      case Expr.LITERAL: {
+        Object value = ast.constant(a);
+        builder.append(value == null ? "nil" : value.toString());
+        return;
+      }
+      case Expr.SET:
+        builder.append("(=");
+        child(ast, a, builder);
+        builder.append(" ").append(ast.constant(b));
+        child(ast, c, builder);
+        break;
+      case Expr.SUPER:
+        builder.append("(super ").append(ast.constant(a));
+        break;
+      case Expr.THIS:
+        builder.append("this");
+        return;
+      case Expr.UNARY:
+        builder.append("(").append(ast.constant(b));
+        child(ast, a, builder);
+        break;
+      case Expr.VARIABLE:
+        builder.append(ast.constant(a));
+        return;
+
+      case FlatAst.STMT + Stmt.BLOCK:
+        builder.append("(block ");
+        for (int i = 0; i < ast.listSize(a); i++) print(ast, ast.listItem(a, i), builder);
+        break;
+      case FlatAst.STMT + Stmt.CLASS:
+        builder.append("(class ").append(ast.constant(a));
+        if (b != -1) {
+          builder.append(" <");
+          child(ast, b, builder);
+        }
+        for (int i = 0; i < ast.listSize(c); i++) child(ast, ast.listItem(c, i), builder);
+        break;
+      case FlatAst.STMT + Stmt.EXPRESSION:
+        builder.append("(;");
+        child(ast, a, builder);
+        break;
+      case FlatAst.STMT + Stmt.FUNCTION:
+        builder.append("(fun ").append(ast.constant(a)).append("(");
+        // a param is its name's constant and its line
+        for (int i = 0; i < ast.listSize(b); i += 2) {
+          if (i > 0) builder.append(" ");
+          builder.append(ast.constant(ast.listItem(b, i)));
+        }
+        builder.append(") ");
+        for (int i = 0; i < ast.listSize(c); i++) print(ast, ast.listItem(c, i), builder);
+        break;
+      case FlatAst.STMT + Stmt.IF:
+        builder.append(c == -1 ? "(if" : "(if-else");
+        child(ast, a, builder);
+        child(ast, b, builder);
+        if (c != -1) child(ast, c, builder);
+        break;
+      case FlatAst.STMT + Stmt.IMPORT:
+        builder.append("(import \"").append(ast.constant(b)).append("\" as ").append(ast.constant(a));
+        break;
+      case FlatAst.STMT + Stmt.PRINT:
+        builder.append("(print");
+        child(ast, a, builder);
+        break;
+      case FlatAst.STMT + Stmt.RETURN:
+        builder.append("(return");
+        if (a != -1) child(ast, a, builder);
+        break;
+      case FlatAst.STMT + Stmt.VAR:
+        builder.append("(var ").append(ast.constant(a));
+        if (b != -1) {
+          builder.append(" =");
+          child(ast, b, builder);
+        }
+        break;
+      case FlatAst.STMT + Stmt.WHILE:
+        builder.append("(while");
+        child(ast, a, builder);
+        child(ast, b, builder);
+        break;
+      default:
+        throw new IllegalStateException("Node " + node + " has no kind.");
+    }
+    builder.append(")");
+  }
+
+  private void child(FlatAst ast, int node, StringBuilder builder) {
+    builder.append(" ");
+    print(ast, node, builder);
+  }
 //< Statements and State omit
 //> visit-methods
 //> Statements and State omit
@@ -97,6 +232,11 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         stmt.elseBranch);
   }
 //< Control Flow omit
+
+  @Override
+  public String visitImportStmt(Stmt.Import stmt) {
+    return parenthesize2("import", stmt.path, "as", stmt.name);
+  }
 //> Statements and State omit
 
   @Override
@@ -0,0 +1,102 @@
+/*
+ * Batch: run many scripts at the same time, each in its own context(see Engine)
+ *
+ * every run gets a new context, so runs share nothing but the compiled scripts,
+ * which are never changed(see CompiledScript). a run is on a virtual thread
+ * where the jvm has them(java 21+), otherwise on a pool of a thread per core.
+ *
+ *   try (Batch batch = new Batch(engine)) {
+ *     CompletableFuture<Batch.Run> run = batch.submit("job", script);
+ *   }
+ *
+ * - submit(string name, script script): run script, the future is done when it is
+ * - submit(string name, snapshot snapshot, script script): run script in a context started
+ *   from the snapshot(see Snapshot)
+ * - close(): wait for every run, and stop the threads
+ * - Run: a run's name, Result and how long it took
+ */
+package com.craftinginterpreters.lox;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class Batch implements AutoCloseable {
+  private final Engine engine;
+  private final ExecutorService executor;
+
+  public Batch(Engine engine) {
+    this.engine = Objects.requireNonNull(engine, "engine");
+    this.executor = executor();
+  }
+
+  public CompletableFuture<Run> submit(String name, Script script) {
+    return submit(name, null, script);
+  }
+
+  public CompletableFuture<Run> submit(String name, Snapshot snapshot, Script script) {
+    Objects.requireNonNull(script, "script");
+    return CompletableFuture.supplyAsync(() -> {
+      long start = System.nanoTime();
+      try (Context context = snapshot == null ? engine.newContext() : engine.newContext(snapshot)) {
+        Result result = context.run(script);
+        return new Run(name, result, System.nanoTime() - start);
+      }
+    }, executor);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        // keep waiting, a run can't be stopped half way
+      }
+    } catch (InterruptedException error) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Executors.newVirtualThreadPerTaskExecutor() isn't there before java 21
+  static ExecutorService executor() {
+    try {
+      return (ExecutorService)Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException error) {
+      AtomicInteger count = new AtomicInteger();
+      return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+        Thread thread = new Thread(task, "lox-batch-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  public static final class Run {
+    private final String name;
+    private final Result result;
+    private final long nanos;
+
+    Run(String name, Result result, long nanos) {
+      this.name = name;
+      this.result = result;
+      this.nanos = nanos;
+    }
+
+    public String name() {
+      return name;
+    }
+
+    public Result result() {
+      return result;
+    }
+
+    public long nanos() {
+      return nanos;
+    }
+  }
+}
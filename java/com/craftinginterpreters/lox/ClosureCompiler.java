@@ -0,0 +1,485 @@
+/*
+ * ClosureCompiler:
+ * compile the resolved ast once into a tree of small closures, every closure
+ * holds its already compiled children, so running the program is a chain of
+ * direct calls instead of accept() + visitXxx() for every node.
+ *
+ * - Node: compiled expr, evaluate(environment) return its value
+ * - Step: compiled stmt, execute(environment)
+ *
+ * - compile(list<stmt>): compile the top-level statements into one step
+ */
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Node>, Stmt.Visitor<ClosureCompiler.Step> {
+  interface Node {
+    Object evaluate(Environment environment);
+  }
+
+  interface Step {
+    void execute(Environment environment);
+  }
+
+  private final Interpreter interpreter;
+  private final Environment.Global globals;
+
+  ClosureCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+    this.globals = interpreter.globals;
+  }
+
+  Step compile(List<Stmt> statements) {
+    return sequence(statements);
+  }
+
+  private Node compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private Step compile(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  // compile statements into one step, which run them in order
+  private Step sequence(List<Stmt> statements) {
+    Step[] steps = new Step[statements.size()];
+    for (int i = 0; i < steps.length; i++) {
+      steps[i] = compile(statements.get(i));
+    }
+
+    if (steps.length == 1) return steps[0];
+    return environment -> {
+      for (Step step : steps) {
+        step.execute(environment);
+      }
+    };
+  }
+
+  // define a declared name: in its slot, or in globals at top-level
+  private interface Declare {
+    void define(Environment environment, Object value);
+  }
+
+  private Declare declare(Stmt stmt, Token name) {
+    int slot = stmt.slot;
+    if (slot == -1) {
+      String key = name.lexeme;
+      return (environment, value) -> globals.define(key, value);
+    }
+    return (environment, value) -> environment.set(slot, value);
+  }
+
+  // compile function's body, the function's environment is created by LoxFunction
+  private Step body(Stmt.Function function) {
+    if (!(function.body instanceof LazyBody)) return sequence(function.body);
+
+    // a lazy body is compiled on its first call, after LoxFunction has parsed it
+    Step[] compiled = new Step[1];
+    return environment -> {
+      if (compiled[0] == null) compiled[0] = sequence(function.body);
+      compiled[0].execute(environment);
+    };
+  }
+
+  // Compile Stmt
+
+  @Override
+  public Step visitBlockStmt(Stmt.Block stmt) {
+    Step body = sequence(stmt.statements);
+    int locals = stmt.locals;
+    return environment -> body.execute(Environment.create(environment, locals));
+  }
+
+  @Override
+  public Step visitClassStmt(Stmt.Class stmt) {
+    Token name = stmt.name;
+    Declare declare = declare(stmt, name);
+    Node superclassNode = stmt.superclass == null ? null : compile(stmt.superclass);
+    Token superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+
+    List<Stmt.Function> declarations = stmt.methods;
+    Step[] bodies = new Step[declarations.size()];
+    for (int i = 0; i < bodies.length; i++) {
+      bodies[i] = body(declarations.get(i));
+    }
+
+    return environment -> {
+      // 1.get the super class and update environment infomations
+      Object superclass = null;
+      if (superclassNode != null) {
+        superclass = superclassNode.evaluate(environment);
+        if (!(superclass instanceof LoxClass)) {
+          throw new RuntimeError(superclassName, "Superclass must be a class.");
+        }
+      }
+      declare.define(environment, null);
+      Environment methodEnvironment = environment;
+      if (superclassNode != null) {
+        methodEnvironment = Environment.superScope(environment, superclass);
+      }
+      // 2.alloc methods
+      Map<String, LoxFunction> methods = new HashMap<>();
+      for (int i = 0; i < bodies.length; i++) {
+        Stmt.Function method = declarations.get(i);
+        boolean isInitializer = method.name.lexeme.equals("init");
+        methods.put(method.name.lexeme,
+            new LoxFunction(method, methodEnvironment, isInitializer, bodies[i]));
+      }
+      // 3.merge together to LoxClass and assign it to current environment
+      declare.define(environment, new LoxClass(name.lexeme, (LoxClass)superclass, methods));
+    };
+  }
+
+  @Override
+  public Step visitExpressionStmt(Stmt.Expression stmt) {
+    Node expression = compile(stmt.expression);
+    return expression::evaluate;
+  }
+
+  @Override
+  public Step visitFunctionStmt(Stmt.Function stmt) {
+    Declare declare = declare(stmt, stmt.name);
+    Step body = body(stmt);
+    return environment -> declare.define(environment, new LoxFunction(stmt, environment, false, body));
+  }
+
+  @Override
+  public Step visitIfStmt(Stmt.If stmt) {
+    Node condition = compile(stmt.condition);
+    Step thenBranch = compile(stmt.thenBranch);
+    if (stmt.elseBranch == null) {
+      return environment -> {
+        if (Interpreter.isTruthy(condition.evaluate(environment))) thenBranch.execute(environment);
+      };
+    }
+
+    Step elseBranch = compile(stmt.elseBranch);
+    return environment -> {
+      if (Interpreter.isTruthy(condition.evaluate(environment))) {
+        thenBranch.execute(environment);
+      } else {
+        elseBranch.execute(environment);
+      }
+    };
+  }
+
+  // the module is loaded and run by the interpreter, in its own globals
+  @Override
+  public Step visitImportStmt(Stmt.Import stmt) {
+    Declare declare = declare(stmt, stmt.name);
+    return environment -> declare.define(environment, interpreter.importModule(stmt));
+  }
+
+  @Override
+  public Step visitPrintStmt(Stmt.Print stmt) {
+    Node expression = compile(stmt.expression);
+    Output output = interpreter.output;
+    return environment -> output.println(Interpreter.stringify(expression.evaluate(environment)));
+  }
+
+  @Override
+  public Step visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      return environment -> {
+        throw new Return(null);
+      };
+    }
+
+    Node value = compile(stmt.value);
+    return environment -> {
+      throw new Return(value.evaluate(environment));
+    };
+  }
+
+  @Override
+  public Step visitVarStmt(Stmt.Var stmt) {
+    Declare declare = declare(stmt, stmt.name);
+    if (stmt.initializer == null) {
+      return environment -> declare.define(environment, null);
+    }
+
+    Node initializer = compile(stmt.initializer);
+    return environment -> declare.define(environment, initializer.evaluate(environment));
+  }
+
+  @Override
+  public Step visitWhileStmt(Stmt.While stmt) {
+    Node condition = compile(stmt.condition);
+    Step body = compile(stmt.body);
+    return environment -> {
+      while (Interpreter.isTruthy(condition.evaluate(environment))) {
+        body.execute(environment);
+      }
+    };
+  }
+
+  // Compile Expr
+
+  @Override
+  public Node visitAssignExpr(Expr.Assign expr) {
+    Token name = expr.name;
+    Node value = compile(expr.value);
+    int depth = expr.depth;
+    int slot = expr.slot;
+    if (depth == -1) {
+      return environment -> {
+        Object result = value.evaluate(environment);
+        globals.assign(name, result);
+        return result;
+      };
+    }
+
+    return environment -> {
+      Object result = value.evaluate(environment);
+      environment.assignAt(depth, slot, result);
+      return result;
+    };
+  }
+
+  // the operator is known here, so pick the closure for it once
+  @Override
+  public Node visitBinaryExpr(Expr.Binary expr) {
+    Node left = compile(expr.left);
+    Node right = compile(expr.right);
+    Token operator = expr.operator;
+
+    switch (operator.type) {
+      case BANG_EQUAL:
+        return environment -> !Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+      case EQUAL_EQUAL:
+        return environment -> Interpreter.isEqual(left.evaluate(environment), right.evaluate(environment));
+      case GREATER:
+        return environment -> {
+          Object a = left.evaluate(environment);
+          Object b = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a > (double)b;
+        };
+      case GREATER_EQUAL:
+        return environment -> {
+          Object a = left.evaluate(environment);
+          Object b = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a >= (double)b;
+        };
+      case LESS:
+        return environment -> {
+          Object a = left.evaluate(environment);
+          Object b = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a < (double)b;
+        };
+      case LESS_EQUAL:
+        return environment -> {
+          Object a = left.evaluate(environment);
+          Object b = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a <= (double)b;
+        };
+      case MINUS:
+        return environment -> {
+          Object a = left.evaluate(environment);
+          Object b = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a - (double)b;
+        };
+      case PLUS:
+        return environment -> {
+          Object a = left.evaluate(environment);
+          Object b = right.evaluate(environment);
+          if (a instanceof Double && b instanceof Double) {
+            return (double)a + (double)b;
+          }
+          if (a instanceof String && b instanceof String) {
+            return (String)a + (String)b;
+          }
+          throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+        };
+      case SLASH:
+        return environment -> {
+          Object a = left.evaluate(environment);
+          Object b = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a / (double)b;
+        };
+      case STAR:
+        return environment -> {
+          Object a = left.evaluate(environment);
+          Object b = right.evaluate(environment);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a * (double)b;
+        };
+      default:
+    }
+    // Unreachable.
+    return environment -> null;
+  }
+
+  @Override
+  public Node visitCallExpr(Expr.Call expr) {
+    Node callee = compile(expr.callee);
+    Token paren = expr.paren;
+    Node[] arguments = new Node[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+
+    return environment -> {
+      Object function = callee.evaluate(environment);
+
+      List<Object> values = new ArrayList<>(arguments.length);
+      for (Node argument : arguments) {
+        values.add(argument.evaluate(environment));
+      }
+
+      if (!(function instanceof LoxCallable)) {
+        throw new RuntimeError(paren, "Can only call functions and classes.");
+      }
+
+      LoxCallable callable = (LoxCallable)function;
+      if (values.size() != callable.arity()) {
+        throw new RuntimeError(paren, "Expected " + callable.arity() + " arguments but got " + values.size() + ".");
+      }
+
+      try {
+        return callable.call(interpreter, values);
+      } catch (StackOverflowError error) {
+        // the call that couldn't get a frame, like any other runtime error
+        throw new RuntimeError(paren, "Stack overflow.");
+      }
+    };
+  }
+
+  @Override
+  public Node visitGetExpr(Expr.Get expr) {
+    Node object = compile(expr.object);
+    Token name = expr.name;
+    return environment -> {
+      Object instance = object.evaluate(environment);
+      if (instance instanceof LoxInstance) {
+        return ((LoxInstance) instance).get(name);
+      }
+      if (instance instanceof LoxModule) {
+        return ((LoxModule) instance).get(name);
+      }
+
+      throw new RuntimeError(name, "Only instances have properties.");
+    };
+  }
+
+  // grouping has nothing to do at runtime, just use its expression
+  @Override
+  public Node visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public Node visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    return environment -> value;
+  }
+
+  @Override
+  public Node visitLogicalExpr(Expr.Logical expr) {
+    Node left = compile(expr.left);
+    Node right = compile(expr.right);
+
+    if (expr.operator.type == TokenType.OR) {
+      return environment -> {
+        Object value = left.evaluate(environment);
+        if (Interpreter.isTruthy(value)) return value;
+        return right.evaluate(environment);
+      };
+    }
+
+    return environment -> {
+      Object value = left.evaluate(environment);
+      if (!Interpreter.isTruthy(value)) return value;
+      return right.evaluate(environment);
+    };
+  }
+
+  @Override
+  public Node visitSetExpr(Expr.Set expr) {
+    Node object = compile(expr.object);
+    Node value = compile(expr.value);
+    Token name = expr.name;
+    return environment -> {
+      Object instance = object.evaluate(environment);
+
+      if (!(instance instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have fields.");
+      }
+
+      Object result = value.evaluate(environment);
+      ((LoxInstance)instance).set(name, result);
+      return result;
+    };
+  }
+
+  @Override
+  public Node visitSuperExpr(Expr.Super expr) {
+    int distance = expr.depth;
+    Token method = expr.method;
+    return environment -> {
+      LoxClass superclass = (LoxClass)environment.getAt(distance, 0);
+      LoxInstance object = (LoxInstance)environment.getAt(distance - 1, 0);
+      LoxFunction function = superclass.findMethod(method.lexeme);
+
+      if (function == null) {
+        throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+      }
+      return function.bind(object);
+    };
+  }
+
+  @Override
+  public Node visitThisExpr(Expr.This expr) {
+    return variable(expr.keyword, expr);
+  }
+
+  @Override
+  public Node visitUnaryExpr(Expr.Unary expr) {
+    Node right = compile(expr.right);
+    Token operator = expr.operator;
+
+    switch (operator.type) {
+      case BANG:
+        return environment -> !Interpreter.isTruthy(right.evaluate(environment));
+      case MINUS:
+        return environment -> {
+          Object value = right.evaluate(environment);
+          Interpreter.checkNumberOperand(operator, value);
+          return -(double)value;
+        };
+      default:
+    }
+
+    // Unreachable.
+    return environment -> null;
+  }
+
+  @Override
+  public Node visitVariableExpr(Expr.Variable expr) {
+    return variable(expr.name, expr);
+  }
+
+  // the resolved depth is known here, so local and global lookups get their own closure
+  private Node variable(Token name, Expr expr) {
+    int depth = expr.depth;
+    if (depth == -1) {
+      return environment -> globals.get(name);
+    }
+
+    int slot = expr.slot;
+    if (depth == 0) {
+      return environment -> environment.get(slot);
+    }
+    return environment -> environment.getAt(depth, slot);
+  }
+}
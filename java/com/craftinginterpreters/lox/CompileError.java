@@ -0,0 +1,18 @@
+/*
+ * CompileError: a script has errors(see CompiledScript)
+ * - errors(list<string>): every error as Lox would print it, in source order
+ */
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+class CompileError extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  final List<String> errors;
+
+  CompileError(List<String> errors) {
+    super(String.join("\n", errors));
+    this.errors = List.copyOf(errors);
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * CompiledScript: a script scanned, parsed and resolved once, to run any number of times
+ *
+ * the resolution is kept in the nodes(not in an interpreter) and nothing changes
+ * them after, so a script can be shared by threads and run by many interpreters
+ * at the same time. its function bodies are never lazy(see LazyBody), parsing one
+ * on its first call would change the script under the other interpreters.
+ *
+ * - compile(string source)/compile(bytebuffer source): throw CompileError if there are errors
+ * - run(interpreter interpreter): run in the interpreter's globals, a RuntimeError is thrown
+ *   the interpreter can be new, or reset(see Interpreter.reset) to be used again
+ * - statements(): the resolved statements, read only
+ */
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+final class CompiledScript {
+  // final: everything resolved before the constructor is done is seen by every thread
+  private final List<Stmt> statements;
+
+  // the statements must be resolved, and without errors
+  CompiledScript(List<Stmt> statements) {
+    this.statements = Collections.unmodifiableList(new ArrayList<>(statements));
+  }
+
+  static CompiledScript compile(String source) {
+    return compile(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  // source is utf-8
+  static CompiledScript compile(ByteBuffer source) {
+    // errors are collected here, not printed, compiling doesn't touch Lox's state
+    Diagnostics diagnostics = new Diagnostics();
+    TokenBuffer tokens = new Scanner(source, diagnostics).scanTokens();
+    List<Stmt> statements = new Parser(tokens, false, diagnostics).parse();
+    if (diagnostics.isEmpty()) {
+      new Resolver(diagnostics).resolve(statements);
+    }
+    if (!diagnostics.isEmpty()) throw new CompileError(diagnostics.errors());
+    return new CompiledScript(statements);
+  }
+
+  void run(Interpreter interpreter) {
+    interpreter.run(statements);
+  }
+
+  List<Stmt> statements() {
+    return statements;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Context: an interpreter of an Engine, with its own globals, output and errors
+ *
+ * the globals are kept from one run to the next, like the REPL. a context is
+ * used by one thread at a time, run another context for another thread.
+ *
+ * - run(script script): run the script in this context's globals
+ * - eval(string source): compile(see Engine.compile) and run source
+ * - reset(): forget the globals of earlier runs, but a snapshot's it started from
+ * - snapshot(): freeze the globals, to start other contexts from(see Snapshot)
+ * - close(): flush the output, a context's writer is never closed
+ */
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.Objects;
+
+public final class Context implements AutoCloseable {
+  private final Engine engine;
+  private final Interpreter interpreter;
+  // memory output: every run's output goes in its Result
+  private final boolean memory;
+
+  Context(Engine engine, Output output, boolean memory, Environment.Global globals) {
+    this.engine = engine;
+    this.interpreter = new Interpreter(output, globals);
+    this.memory = memory;
+  }
+
+  public Result run(Script script) {
+    Objects.requireNonNull(script, "script");
+    if (!script.isValid()) {
+      return new Result(Result.COMPILE_ERROR, script.errors(), "");
+    }
+
+    interpreter.directory = script.directory();
+    interpreter.charset = script.charset();
+    try {
+      script.compiled.run(interpreter);
+    } catch (RuntimeError error) {
+      return new Result(Result.RUNTIME_ERROR, List.of(Lox.message(error)), output());
+    } catch (StackOverflowError error) {
+      // calls are stopped as runtime errors, this is deep recursion in something else
+      return new Result(Result.RUNTIME_ERROR, List.of("Stack overflow."), output());
+    }
+    return new Result(Result.OK, List.of(), output());
+  }
+
+  public Result eval(String source) {
+    return run(engine.compile(source));
+  }
+
+  public void reset() {
+    interpreter.reset();
+    output();
+  }
+
+  public Snapshot snapshot() {
+    return Snapshot.of(interpreter.globals);
+  }
+
+  @Override
+  public void close() {
+    interpreter.output.close();
+  }
+
+  // flush, and take what a memory output has collected
+  private String output() {
+    if (memory) return interpreter.output.take();
+    interpreter.output.flush();
+    return "";
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Daemon: keep a warmed up interpreter process, and run the scripts clients send it
+ *
+ * every script is run in its own context(see Engine), the process(and the jit's
+ * work) is kept between them. the address is a unix domain socket's path, or
+ * :port for a loopback port.
+ *
+ * a client runs any code as the daemon's user, so only that user may connect:
+ * - a socket file is made owner only. an old one is only removed if nothing
+ *   answers on it, a file which isn't a socket or a live daemon is an error
+ * - any local user can reach a port, the daemon writes a random token to
+ *   ~/.jlox-daemon-<port>(owner only) and a client must send it first
+ *
+ * protocol, ints are big endian:
+ * - a port's client sends the token: TOKEN_SIZE bytes
+ * - the client sends the directory the script's imports start at and the charset they're read
+ *   in(see Script): each one's length(int), then its utf-8 bytes
+ * - the client sends the script: length(int), then its utf-8 bytes
+ * - the daemon sends frames: kind(byte), length(int), bytes
+ *   STDOUT and STDERR are output as it's printed, EXIT(a 4 bytes exit code) is the last
+ *
+ * - Daemon(address, snapshot): snapshot can be null(see Snapshot)
+ * - serve(): accept clients until the process is stopped
+ * - run(address, path directory, charset charset, bytebuffer source): be the client, return the script's exit code
+ */
+package com.craftinginterpreters.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+class Daemon {
+  private static final byte STDOUT = 1;
+  private static final byte STDERR = 2;
+  private static final byte EXIT = 3;
+  // a bigger script is refused
+  private static final int MAX_SOURCE = 64 * 1024 * 1024;
+  private static final int MAX_PATH = 64 * 1024;
+  private static final int TOKEN_SIZE = 32;
+  private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+  private final String address;
+  private final Snapshot snapshot;
+  private final Engine engine = new Engine();
+  // what a port's client must send first, null for a socket file
+  private byte[] token = null;
+
+  Daemon(String address, Snapshot snapshot) {
+    this.address = address;
+    this.snapshot = snapshot;
+  }
+
+  void serve() throws IOException {
+    ServerSocketChannel server;
+    if (address.startsWith(":")) {
+      server = ServerSocketChannel.open(StandardProtocolFamily.INET);
+      server.bind(socketAddress(address));
+      token = new byte[TOKEN_SIZE];
+      new SecureRandom().nextBytes(token);
+      writeToken(tokenFile(address), token);
+    } else {
+      Path path = Path.of(address);
+      removeStaleSocket(path);
+      server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+      server.bind(UnixDomainSocketAddress.of(path));
+      path.toFile().deleteOnExit();
+      ownerOnly(path);
+    }
+
+    ExecutorService clients = Batch.executor();
+    try (server) {
+      for (;;) {
+        SocketChannel client = server.accept();
+        clients.execute(() -> serve(client));
+      }
+    } finally {
+      clients.shutdownNow();
+    }
+  }
+
+  // run one client's script, a client which goes away only loses its output
+  private void serve(SocketChannel client) {
+    try (client) {
+      DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+      Frames out = new Frames(Channels.newOutputStream(client));
+      if (token != null && !MessageDigest.isEqual(token, in.readNBytes(TOKEN_SIZE))) {
+        out.frame(STDERR, "Wrong daemon token.\n".getBytes(StandardCharsets.UTF_8));
+        out.exit(77);
+        return;
+      }
+      int pathLength = in.readInt();
+      if (pathLength < 0 || pathLength > MAX_PATH) {
+        out.frame(STDERR, "Script directory is too long.\n".getBytes(StandardCharsets.UTF_8));
+        out.exit(65);
+        return;
+      }
+      Path directory;
+      Charset charset;
+      try {
+        directory = Path.of(new String(in.readNBytes(pathLength), StandardCharsets.UTF_8));
+        int nameLength = in.readInt();
+        if (nameLength < 0 || nameLength > MAX_PATH) throw new IllegalArgumentException();
+        charset = Charset.forName(new String(in.readNBytes(nameLength), StandardCharsets.UTF_8));
+      } catch (IllegalArgumentException error) {
+        // a bad path(InvalidPathException) or charset
+        out.frame(STDERR, "Bad script directory or charset.\n".getBytes(StandardCharsets.UTF_8));
+        out.exit(65);
+        return;
+      }
+      int length = in.readInt();
+      if (length < 0 || length > MAX_SOURCE) {
+        out.frame(STDERR, "Script is too big.\n".getBytes(StandardCharsets.UTF_8));
+        out.exit(65);
+        return;
+      }
+      byte[] source = in.readNBytes(length);
+
+      Result result;
+      try (Context context = snapshot == null
+          ? engine.newContext(out.writer(STDOUT)) : engine.newContext(snapshot, out.writer(STDOUT))) {
+        result = context.run(engine.compile(ByteBuffer.wrap(source), directory, charset));
+      }
+      Writer errors = out.writer(STDERR);
+      for (String error : result.errors()) errors.write(error + System.lineSeparator());
+      errors.flush();
+      out.exit(result.exitCode());
+    } catch (IOException | UncheckedIOException error) {
+      // the client is gone
+    }
+  }
+
+  static int run(String address, Path directory, Charset charset, ByteBuffer source) throws IOException {
+    try (SocketChannel channel = SocketChannel.open(socketAddress(address))) {
+      DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+      if (address.startsWith(":")) out.write(Files.readAllBytes(tokenFile(address)));
+      byte[] path = directory.toString().getBytes(StandardCharsets.UTF_8);
+      out.writeInt(path.length);
+      out.write(path);
+      byte[] name = charset.name().getBytes(StandardCharsets.UTF_8);
+      out.writeInt(name.length);
+      out.write(name);
+      byte[] bytes = new byte[source.remaining()];
+      source.duplicate().get(bytes);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      out.flush();
+
+      DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+      for (;;) {
+        byte kind = in.readByte();
+        byte[] frame = in.readNBytes(in.readInt());
+        if (kind == EXIT) {
+          System.out.flush();
+          return ByteBuffer.wrap(frame).getInt();
+        }
+        PrintStream stream = kind == STDERR ? System.err : System.out;
+        stream.write(frame);
+      }
+    }
+  }
+
+  // a socket file of a daemon which died is removed, anything else at path is left alone
+  private static void removeStaleSocket(Path path) throws IOException {
+    if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) return;
+    if (!isSocket(path)) throw new BindException(path + " exists and isn't a socket.");
+    try {
+      SocketChannel.open(UnixDomainSocketAddress.of(path)).close();
+    } catch (ConnectException error) {
+      Files.delete(path);
+      return;
+    }
+    throw new BindException("Address already in use: " + path + ".");
+  }
+
+  private static boolean isSocket(Path path) throws IOException {
+    try {
+      int mode = (Integer)Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+      return (mode & 0170000) == 0140000; // S_IFSOCK
+    } catch (UnsupportedOperationException error) {
+      // no unix attributes, a socket is at least not a file, a directory or a link
+      return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+    }
+  }
+
+  private static Path tokenFile(String address) {
+    return Path.of(System.getProperty("user.home"), ".jlox-daemon-" + address.substring(1));
+  }
+
+  // the token file is made owner only before the token is in it
+  private static void writeToken(Path file, byte[] token) throws IOException {
+    if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) Files.delete(file);
+    try {
+      Files.createFile(file, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+    } catch (UnsupportedOperationException error) {
+      Files.createFile(file);
+    }
+    file.toFile().deleteOnExit();
+    Files.write(file, token);
+  }
+
+  private static void ownerOnly(Path path) throws IOException {
+    try {
+      Files.setPosixFilePermissions(path, OWNER_ONLY);
+    } catch (UnsupportedOperationException error) {
+      // not a posix file system, it has its own access control
+    }
+  }
+
+  private static SocketAddress socketAddress(String address) {
+    if (address.startsWith(":")) {
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address.substring(1)));
+    }
+    return UnixDomainSocketAddress.of(address);
+  }
+
+  // the daemon's side of a connection, frames can come from the output and the errors
+  private static final class Frames {
+    private final DataOutputStream out;
+
+    Frames(OutputStream out) {
+      this.out = new DataOutputStream(out);
+    }
+
+    synchronized void frame(byte kind, byte[] bytes) throws IOException {
+      out.writeByte(kind);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      out.flush();
+    }
+
+    void exit(int code) throws IOException {
+      frame(EXIT, ByteBuffer.allocate(4).putInt(code).array());
+    }
+
+    // every write(see Output) is a frame
+    Writer writer(byte kind) {
+      return new Writer() {
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+          frame(kind, new String(chars, offset, length).getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void write(String string) throws IOException {
+          frame(kind, string.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+      };
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Diagnostics: errors collected instead of reported at once, so errors found
+ * on other threads can still be reported in source order, or go somewhere
+ * else than stderr(see CompiledScript)
+ *
+ * - error(token, message)/error(int line, string message): collect an error
+ * - error(int line, int offset, string message): a scanner's error, at offset in the source
+ * - report(): report them(see Lox.report) in the order they were collected
+ * - isEmpty()/errors(): the errors, as Lox would print them
+ * - offset(int i): where the error is in the source, -1 if it's not known
+ */
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class Diagnostics {
+  private final List<String> errors = new ArrayList<>();
+  private final List<Integer> offsets = new ArrayList<>();
+
+  void error(Token token, String message) {
+    errors.add(Lox.message(token, message));
+    offsets.add(-1);
+  }
+
+  void error(int line, String message) {
+    error(line, -1, message);
+  }
+
+  void error(int line, int offset, String message) {
+    errors.add(Lox.message(line, "", message));
+    offsets.add(offset);
+  }
+
+  void report() {
+    for (String error : errors) {
+      Lox.report(error);
+    }
+  }
+
+  boolean isEmpty() {
+    return errors.isEmpty();
+  }
+
+  List<String> errors() {
+    return errors;
+  }
+
+  int offset(int i) {
+    return offsets.get(i);
+  }
+}
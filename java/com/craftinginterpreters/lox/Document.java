@@ -0,0 +1,264 @@
+/*
+ * Document: a source file being edited, scanned, parsed and resolved again only
+ * where it changed(for editors, and anything that checks a file on every edit)
+ *
+ * the file is kept as its top-level declarations, each with where it is in the
+ * text, its statement and its errors. an edit scans and parses again only the
+ * declarations it touches, from the end of the declaration before them to the
+ * start of the one after them, the parser has nothing left over between two
+ * top-level declarations so the rest is the same as before. and the resolver
+ * doesn't track globals, so a declaration never depends on another one and
+ * only the parsed again ones are resolved again.
+ *
+ * a declaration with scanner or parse errors could have ended somewhere else(its
+ * error and the recovery depend on the tokens after it), so an edit next to one
+ * goes over it too, and when the edited part ends with one, or one is right after
+ * it, the part grows until neither is true: then the part ends where a whole parse
+ * starts the next declaration, and what's after it is the same as before. a scanner error between two declarations goes with the one after
+ * it(the last one at the end of the file), so it's scanned again with it. and
+ * a part which ends in a comment(an edit can start one which goes over the rest
+ * of the line) grows too.
+ *
+ * a declaration after an edit which adds or removes lines is only moved, its
+ * errors get the new lines, its statement(with the old lines in its tokens) is
+ * parsed again when it's asked for(see statements).
+ *
+ * - Document(string text)
+ * - edit(int start, int end, string text): replace text[start, end) with text
+ * - text(): the whole text
+ * - diagnostics(): every error, declaration by declaration(a declaration's
+ *   scanner, parser then resolver errors)
+ * - script(): the document as a script(see Engine), with its errors if it has any
+ * - statements(): the resolved statements of the declarations without errors
+ */
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public final class Document {
+  // every error starts with its line(see Lox.message)
+  private static final Pattern ERROR_LINE = Pattern.compile("^\\[line (\\d+)\\]");
+
+  private String text;
+  private final List<Declaration> declarations = new ArrayList<>();
+
+  public Document(String text) {
+    this.text = text;
+    declarations.addAll(analyze(0, text.length(), 1));
+  }
+
+  public void edit(int start, int end, String replacement) {
+    if (start < 0 || end < start || end > text.length()) {
+      throw new IndexOutOfBoundsException("Edit [" + start + ", " + end + ") is outside the text.");
+    }
+    int oldLength = text.length();
+    int lines = newlines(replacement, 0, replacement.length()) - newlines(text, start, end);
+    text = text.substring(0, start) + replacement + text.substring(end);
+    int delta = replacement.length() - (end - start);
+
+    // the declarations the edit touches, [first, last)
+    int first = 0;
+    while (first < declarations.size() && declarations.get(first).end < start) first++;
+    while (first > 0 && declarations.get(first - 1).broken) first--;
+    int last = first;
+    while (last < declarations.size() && declarations.get(last).start <= end) last++;
+    // the scanner errors of the one after are in the part which is scanned again, and a
+    // broken one after is where the parser got to from the part(e.g. an 'else' left over)
+    while (last < declarations.size() && declarations.get(last).broken) last++;
+
+    int regionStart = first == 0 ? 0 : declarations.get(first - 1).end;
+    int line = first == 0 ? 1 : declarations.get(first - 1).endLine;
+    List<Declaration> fresh;
+    for (;;) {
+      int regionEnd = (last == declarations.size() ? oldLength : declarations.get(last).start) + delta;
+      fresh = analyze(regionStart, regionEnd, line);
+      boolean open = !fresh.isEmpty() && fresh.get(fresh.size() - 1).broken;
+      // the part ends where a whole parse would start the next declaration
+      if (last == declarations.size() || !open && !declarations.get(last).broken) break;
+      // twice as many declarations every time, a broken file isn't parsed again and again
+      last = Math.min(declarations.size(), last + Math.max(1, last - first));
+      while (last < declarations.size() && declarations.get(last).broken) last++;
+    }
+
+    for (int i = last; i < declarations.size(); i++) declarations.get(i).move(delta, lines);
+    declarations.subList(first, last).clear();
+    declarations.addAll(first, fresh);
+  }
+
+  public String text() {
+    return text;
+  }
+
+  public List<String> diagnostics() {
+    List<String> errors = new ArrayList<>();
+    for (Declaration declaration : declarations) {
+      for (String error : declaration.errors) errors.add(shift(error, declaration.moved));
+    }
+    return errors;
+  }
+
+  public Script script() {
+    List<String> errors = diagnostics();
+    // a document has no file, its imports start at the working directory
+    Path directory = Paths.get("").toAbsolutePath();
+    if (!errors.isEmpty()) return new Script(null, errors, directory, StandardCharsets.UTF_8);
+    return new Script(new CompiledScript(statements()), null, directory, StandardCharsets.UTF_8);
+  }
+
+  List<Stmt> statements() {
+    List<Stmt> statements = new ArrayList<>();
+    for (int i = 0; i < declarations.size(); i++) {
+      Declaration declaration = declarations.get(i);
+      if (!declaration.errors.isEmpty()) continue;
+      // a moved declaration without errors parses the same alone
+      if (declaration.moved != 0) {
+        declaration = analyze(declaration.start, declaration.end, declaration.line + declaration.moved).get(0);
+        declarations.set(i, declaration);
+      }
+      statements.add(declaration.statement);
+    }
+    return statements;
+  }
+
+  // scan, parse and resolve text[start, end), which starts on line
+  private List<Declaration> analyze(int start, int end, int line) {
+    String region = text.substring(start, end);
+    byte[] bytes = region.getBytes(StandardCharsets.UTF_8);
+    // ascii: the byte offsets are the char offsets
+    boolean ascii = bytes.length == region.length();
+
+    Diagnostics scanErrors = new Diagnostics();
+    TokenBuffer tokens = new Scanner(ByteBuffer.wrap(bytes), line, scanErrors).scanTokens();
+    Diagnostics parseErrors = new Diagnostics();
+    Parser parser = new Parser(tokens, false, parseErrors);
+
+    List<Declaration> result = new ArrayList<>();
+    // the line at region[counted]
+    int counted = 0;
+    while (parser.hasNext()) {
+      int from = parser.position();
+      int errorCount = parseErrors.errors().size();
+      Stmt statement = parser.next();
+      int to = parser.position() - 1;
+
+      int declarationStart = offset(bytes, tokens.start(from), ascii);
+      line += newlines(region, counted, declarationStart);
+      counted = declarationStart;
+      // an error in a block leaves the statement without a part, it's thrown away
+      List<String> errors = parseErrors.errors().subList(errorCount, parseErrors.errors().size());
+      if (!errors.isEmpty()) statement = null;
+      Declaration declaration = new Declaration(start + declarationStart,
+          start + offset(bytes, tokens.end(to), ascii), line, tokens.line(to), statement);
+      declaration.errors.addAll(errors);
+      if (statement != null) {
+        Diagnostics resolveErrors = new Diagnostics();
+        new Resolver(resolveErrors).resolve(statement);
+        declaration.errors.addAll(resolveErrors.errors());
+      }
+      result.add(declaration);
+    }
+
+    // a scanner error goes with the declaration it's in or before, or one without tokens
+    // after the last one, which is broken then, so the part grows to the declaration after
+    // the error(see edit)
+    List<String> scanned = scanErrors.errors();
+    Declaration rest = null;
+    for (int i = scanned.size() - 1; i >= 0; i--) {
+      int offset = start + offset(bytes, scanErrors.offset(i), ascii);
+      Declaration owner = null;
+      for (Declaration declaration : result) {
+        if (declaration.end >= offset) {
+          owner = declaration;
+          break;
+        }
+      }
+      if (owner == null) {
+        if (rest == null) rest = rest(result, start, end, line, region);
+        owner = rest;
+      }
+      owner.errors.add(0, scanned.get(i));
+      owner.broken = true;
+    }
+
+    // the declaration after the part could be in a comment now
+    int tokenEnd = tokens.size() > 1 ? offset(bytes, tokens.end(tokens.size() - 2), ascii) : 0;
+    String tail = region.substring(tokenEnd);
+    if (end < text.length() && tail.lastIndexOf("//") > tail.lastIndexOf('\n')) {
+      if (rest == null) rest = rest(result, start, end, line, region);
+      rest.broken = true;
+    }
+    return result;
+  }
+
+  // a declaration without tokens after the last one of region(text[start, end)), which
+  // starts on line
+  private static Declaration rest(List<Declaration> result, int start, int end, int line, String region) {
+    Declaration last = result.isEmpty() ? null : result.get(result.size() - 1);
+    int from = last == null ? start : last.end;
+    int fromLine = last == null ? line : last.endLine;
+    Declaration rest = new Declaration(from, end, fromLine,
+        fromLine + newlines(region, from - start, region.length()), null);
+    result.add(rest);
+    return rest;
+  }
+
+  // the char offset of a byte offset in bytes
+  private static int offset(byte[] bytes, int offset, boolean ascii) {
+    if (ascii) return offset;
+    return new String(bytes, 0, offset, StandardCharsets.UTF_8).length();
+  }
+
+  private static int newlines(String text, int start, int end) {
+    int count = 0;
+    for (int i = start; i < end; i++) {
+      if (text.charAt(i) == '\n') count++;
+    }
+    return count;
+  }
+
+  private static String shift(String error, int lines) {
+    if (lines == 0) return error;
+    Matcher match = ERROR_LINE.matcher(error);
+    if (!match.find()) return error;
+    return "[line " + (Integer.parseInt(match.group(1)) + lines) + "]" + error.substring(match.end());
+  }
+
+  private static final class Declaration {
+    // [start, end) in the text, from its first token to its last
+    int start;
+    int end;
+    // its first line when it was parsed, and how many lines it has moved since
+    final int line;
+    int moved = 0;
+    // the line its last token ends on, now
+    int endLine;
+    // null if it has parse errors
+    final Stmt statement;
+    final List<String> errors = new ArrayList<>();
+    // a scanner or parse error, it could end elsewhere after an edit
+    boolean broken;
+
+    Declaration(int start, int end, int line, int endLine, Stmt statement) {
+      this.start = start;
+      this.end = end;
+      this.line = line;
+      this.endLine = endLine;
+      this.statement = statement;
+      this.broken = statement == null;
+    }
+
+    void move(int delta, int lines) {
+      start += delta;
+      end += delta;
+      moved += lines;
+      endLine += lines;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Engine: run Lox from a java program
+ *
+ * an engine compiles scripts(see CompiledScript) and makes contexts. it has no
+ * state of its own, so one engine can be shared by every thread. a context has
+ * its own globals, output and errors, so contexts can run on different threads
+ * at the same time. nothing here goes through Lox's static state, stderr or
+ * System.exit, the errors are in the Script and the Result.
+ *
+ *   Engine engine = new Engine();
+ *   Script script = engine.compile("print 1 + 2;");
+ *   try (Context context = engine.newContext()) {
+ *     Result result = context.run(script);   // result.output() is "3\n"
+ *   }
+ *
+ * - compile(string source)/compile(bytebuffer source): a script, with its errors if it has any,
+ *   its relative imports start at the working directory
+ * - compile(string source, path directory)/compile(bytebuffer source, path directory): the same,
+ *   its relative imports start at directory(e.g. the script file's), imported files are utf-8
+ * - newContext(): a context whose output is kept in memory, see Result.output
+ * - newContext(writer out): a context which prints to out
+ * - newContext(snapshot snapshot)/newContext(snapshot snapshot, writer out): a context which
+ *   starts with the snapshot's globals(see Snapshot)
+ */
+package com.craftinginterpreters.lox;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Objects;
+
+public final class Engine {
+  public Script compile(String source) {
+    return compile(source, Paths.get(""));
+  }
+
+  public Script compile(String source, Path directory) {
+    Objects.requireNonNull(source, "source");
+    return compile(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)), directory);
+  }
+
+  // source is utf-8
+  Script compile(ByteBuffer source) {
+    return compile(source, Paths.get(""));
+  }
+
+  Script compile(ByteBuffer source, Path directory) {
+    return compile(source, directory, StandardCharsets.UTF_8);
+  }
+
+  // the imported files are read in charset(see Scanner.read)
+  Script compile(ByteBuffer source, Path directory, Charset charset) {
+    Path base = Objects.requireNonNull(directory, "directory").toAbsolutePath();
+    try {
+      return new Script(CompiledScript.compile(source), null, base, charset);
+    } catch (CompileError error) {
+      return new Script(null, error.errors, base, charset);
+    }
+  }
+
+  public Context newContext() {
+    return new Context(this, Output.memory(), true, new Environment.Global());
+  }
+
+  public Context newContext(Writer out) {
+    Objects.requireNonNull(out, "out");
+    return new Context(this, Output.writer(out), false, new Environment.Global());
+  }
+
+  public Context newContext(Snapshot snapshot) {
+    return new Context(this, Output.memory(), true, snapshot.fork());
+  }
+
+  public Context newContext(Snapshot snapshot, Writer out) {
+    Objects.requireNonNull(out, "out");
+    return new Context(this, Output.writer(out), false, snapshot.fork());
+  }
+}
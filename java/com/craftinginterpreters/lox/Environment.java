@@ -1,64 +1,61 @@
 /*
  * Environment:
- * 
+ *
  * attributes:
  * - enclosing(Environment): outside of this scope
- * - values(map<string, object)
- * 
+ *
  * methods:
- * - init()/init(enclosing): init with/without enclosing
- * - get(token name): return name's value in this or enclosing
- * - assign(token name, object value): assign name as value in this or enclosing
- * - define(string name, object value): define map in this 
+ * - create(enclosing, size): new local environment with size slots
+ * - superScope(enclosing, superclass): the scope above a subclass's methods, "super" in slot 0
+ * - get(int slot)/set(int slot, object value): the value in slot of this
  * - ancestor(int distance): return environment with its distance
- * - getAt(int distance, string key): get the value at distance with key
- * - assignAt(int distance, string key): assign the value at distance with key
+ * - getAt(int distance, int slot): get the value at distance in slot
+ * - assignAt(int distance, int slot, object value): assign the value at distance in slot
  * - toString()
+ *
+ * the resolver knows every local variable's slot and how many slots each
+ * scope has, so locals live in a small fixed size environment:
+ * - Local: the first 4 values in fields, the rest in an array
+ *
+ * globals can be defined at any time(e.g. in the REPL), so they still go by name:
+ * - Global: values(map<string, object>), base(map<string, object>): a snapshot's globals
+ *   - get(token name)/assign(token name, object value)/define(string name, object value)
+ *   - isDefined(string name)
+ *   - clear(): forget every global but the base
+ *   - snapshot(): every global, as a read only map to be the base of other globals
+ *
+ * the base is shared by every Global made from the same snapshot and never
+ * changes, assigning one of its globals puts the new value in values(copy on write).
  */
 package com.craftinginterpreters.lox;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-class Environment {
-  final Environment enclosing;
-  private final Map<String, Object> values = new HashMap<>();
-
-  Environment() {
-    enclosing = null;
-  }
+abstract class Environment {
+  // only changed when a recycled frame is reused(see Interpreter.acquireFrame)
+  Environment enclosing;
 
   Environment(Environment enclosing) {
     this.enclosing = enclosing;
   }
 
-  Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
-    }
-
-    if (enclosing != null) return enclosing.get(name);
-
-    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+  // new local environment with size slots
+  static Environment create(Environment enclosing, int size) {
+    return new Local(enclosing, size);
   }
 
-  void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
-      return;
-    }
-
-    if (enclosing != null) {
-      enclosing.assign(name, value);
-      return;
-    }
-
-    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+  // it's only ever assigned here, so a method's closure can be shared(see LoxFunction.isShareable)
+  static Local superScope(Environment enclosing, Object superclass) {
+    Local scope = new Local(enclosing, 1, true);
+    scope.set(0, superclass);
+    return scope;
   }
 
-  void define(String name, Object value) {
-    values.put(name, value);
-  }
+  abstract Object get(int slot);
+
+  abstract void set(int slot, Object value);
 
   Environment ancestor(int distance) {
     Environment environment = this;
@@ -68,20 +65,155 @@ class Environment {
     return environment;
   }
 
-  Object getAt(int distance, String name) {
-    return ancestor(distance).values.get(name);
+  Object getAt(int distance, int slot) {
+    return ancestor(distance).get(slot);
   }
 
-  void assignAt(int distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
+  void assignAt(int distance, int slot, Object value) {
+    ancestor(distance).set(slot, value);
   }
 
   @Override
   public String toString() {
-    String result = values.toString();
+    String result = values();
     if (enclosing != null) {
       result += " -> " + enclosing.toString();
     }
     return result;
   }
-}
\ No newline at end of file
+
+  abstract String values();
+
+  static final class Global extends Environment {
+    private final Map<String, Object> values = new HashMap<>();
+    private final Map<String, Object> base;
+
+    Global() {
+      this(Collections.emptyMap());
+    }
+
+    Global(Map<String, Object> base) {
+      super(null);
+      this.base = base;
+    }
+
+    Object get(Token name) {
+      if (values.containsKey(name.lexeme)) {
+        return values.get(name.lexeme);
+      }
+      if (base.containsKey(name.lexeme)) {
+        return base.get(name.lexeme);
+      }
+
+      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    void assign(Token name, Object value) {
+      if (values.containsKey(name.lexeme) || base.containsKey(name.lexeme)) {
+        values.put(name.lexeme, value);
+        return;
+      }
+
+      throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    void define(String name, Object value) {
+      values.put(name, value);
+    }
+
+    boolean isDefined(String name) {
+      return values.containsKey(name) || base.containsKey(name);
+    }
+
+    void clear() {
+      values.clear();
+    }
+
+    Map<String, Object> snapshot() {
+      Map<String, Object> snapshot = new HashMap<>(base);
+      snapshot.putAll(values);
+      return Collections.unmodifiableMap(snapshot);
+    }
+
+    // globals are never resolved to a slot
+    @Override
+    Object get(int slot) {
+      throw new IllegalStateException("Global environment has no slots.");
+    }
+
+    @Override
+    void set(int slot, Object value) {
+      throw new IllegalStateException("Global environment has no slots.");
+    }
+
+    @Override
+    String values() {
+      return snapshot().toString();
+    }
+  }
+
+  // the first 4 slots are fields, the rest go to an array
+  static final class Local extends Environment {
+    private Object value0;
+    private Object value1;
+    private Object value2;
+    private Object value3;
+    private final Object[] rest;
+    // made by superScope
+    final boolean isSuper;
+
+    Local(Environment enclosing, int size) {
+      this(enclosing, size, false);
+    }
+
+    private Local(Environment enclosing, int size, boolean isSuper) {
+      super(enclosing);
+      this.rest = size > 4 ? new Object[size - 4] : null;
+      this.isSuper = isSuper;
+    }
+
+    int size() {
+      return rest == null ? 4 : 4 + rest.length;
+    }
+
+    // forget everything so a recycled frame keeps nothing alive
+    void clear() {
+      enclosing = null;
+      value0 = null;
+      value1 = null;
+      value2 = null;
+      value3 = null;
+    }
+
+    @Override
+    Object get(int slot) {
+      switch (slot) {
+        case 0: return value0;
+        case 1: return value1;
+        case 2: return value2;
+        case 3: return value3;
+        default: return rest[slot - 4];
+      }
+    }
+
+    @Override
+    void set(int slot, Object value) {
+      switch (slot) {
+        case 0: value0 = value; break;
+        case 1: value1 = value; break;
+        case 2: value2 = value; break;
+        case 3: value3 = value; break;
+        default: rest[slot - 4] = value;
+      }
+    }
+
+    @Override
+    String values() {
+      String result = "[" + value0 + ", " + value1 + ", " + value2 + ", " + value3;
+      if (rest != null) {
+        for (Object value : rest) result += ", " + value;
+      }
+      return result + "]";
+    }
+  }
+}
@@ -17,7 +17,31 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Expr {
+abstract sealed class Expr {
+  static final int ASSIGN = 0;
+  static final int BINARY = 1;
+  static final int CALL = 2;
+  static final int GET = 3;
+  static final int GROUPING = 4;
+  static final int LITERAL = 5;
+  static final int LOGICAL = 6;
+  static final int SET = 7;
+  static final int SUPER = 8;
+  static final int THIS = 9;
+  static final int UNARY = 10;
+  static final int VARIABLE = 11;
+
+  final int kind;
+
+  // resolved distance to the variable's scope, -1 means global
+  int depth = -1;
+  // resolved slot of the variable in that scope
+  int slot = -1;
+
+  Expr(int kind) {
+    this.kind = kind;
+  }
+
   interface Visitor<R> {
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
@@ -33,8 +57,9 @@ abstract class Expr {
     R visitVariableExpr(Variable expr);
   }
 
-  static class Assign extends Expr {
+  static final class Assign extends Expr {
     Assign(Token name, Expr value) {
+      super(ASSIGN);
       this.name = name;
       this.value = value;
     }
@@ -49,8 +74,9 @@ abstract class Expr {
   }
 
   //> expr-binary
-  static class Binary extends Expr {
+  static final class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
+      super(BINARY);
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -67,8 +93,9 @@ abstract class Expr {
   }
 //< expr-binary
 //> expr-call
-  static class Call extends Expr {
+  static final class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
+      super(CALL);
       this.callee = callee;
       this.paren = paren;
       this.arguments = arguments;
@@ -85,8 +112,9 @@ abstract class Expr {
   }
 
   //> expr-get
-  static class Get extends Expr {
+  static final class Get extends Expr {
     Get(Expr object, Token name) {
+      super(GET);
       this.object = object;
       this.name = name;
     }
@@ -101,8 +129,9 @@ abstract class Expr {
   }
 
   //> expr-grouping
-  static class Grouping extends Expr {
+  static final class Grouping extends Expr {
     Grouping(Expr expression) {
+      super(GROUPING);
       this.expression = expression;
     }
 
@@ -115,8 +144,9 @@ abstract class Expr {
   }
 
   //> expr-literal
-  static class Literal extends Expr {
+  static final class Literal extends Expr {
     Literal(Object value) {
+      super(LITERAL);
       this.value = value;
     }
 
@@ -129,8 +159,9 @@ abstract class Expr {
   }
   
   //> expr-logical
-  static class Logical extends Expr {
+  static final class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
+      super(LOGICAL);
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -147,8 +178,9 @@ abstract class Expr {
   }
 
   //> expr-set
-  static class Set extends Expr {
+  static final class Set extends Expr {
     Set(Expr object, Token name, Expr value) {
+      super(SET);
       this.object = object;
       this.name = name;
       this.value = value;
@@ -165,8 +197,9 @@ abstract class Expr {
   }
 
   //> expr-super
-  static class Super extends Expr {
+  static final class Super extends Expr {
     Super(Token keyword, Token method) {
+      super(SUPER);
       this.keyword = keyword;
       this.method = method;
     }
@@ -181,8 +214,9 @@ abstract class Expr {
   }
 
   //> expr-this
-  static class This extends Expr {
+  static final class This extends Expr {
     This(Token keyword) {
+      super(THIS);
       this.keyword = keyword;
     }
 
@@ -195,8 +229,9 @@ abstract class Expr {
   }
 //< expr-this
 //> expr-unary
-  static class Unary extends Expr {
+  static final class Unary extends Expr {
     Unary(Token operator, Expr right) {
+      super(UNARY);
       this.operator = operator;
       this.right = right;
     }
@@ -211,8 +246,9 @@ abstract class Expr {
   }
 //< expr-unary
 //> expr-variable
-  static class Variable extends Expr {
+  static final class Variable extends Expr {
     Variable(Token name) {
+      super(VARIABLE);
       this.name = name;
     }
 
@@ -0,0 +1,702 @@
+/*
+ * FlatAst: the ast kept in a few arrays instead of a graph of small objects
+ *
+ * every node takes 4 ints in nodes:
+ * - tag: the node kind(Expr's kind, or STMT + Stmt's kind), and the type of its token << 8
+ * - three operands: child nodes, lists or constants, -1 when there is none
+ * children lists(arguments, statements, methods, params) are in lists: the count
+ * then the items, a param is two items: its name's constant and its line.
+ *
+ * attributes:
+ * - nodes(int[]), lines(int[]): the node's line is the line of its main token
+ * - resolved(long[]): expr: depth << 32 | slot, stmt: escapes(bit 63) | locals << 32 | slot
+ * - lists(int[]): children lists
+ * - constants(object[]): names, lexemes and literal values, each one once
+ * - root(int): the list of top-level statements
+ *
+ * the operands of each kind:
+ *   assign: name, value               binary/logical: left, right, operator
+ *   call: callee, arguments           get: object, name
+ *   grouping: expression              literal: value
+ *   set: object, name, value          super: method
+ *   this, variable: name              unary: right, operator
+ *   block: statements                 class: name, superclass, methods
+ *   expression/print: expression      function: name, params, body
+ *   if: condition, then, else         import: name, path
+ *   return: value                     var: name, initializer
+ *   while: condition, body
+ *
+ * methods:
+ * - encode(list<stmt> statements): flatten the(resolved) statements
+ * - decode(): the statements again, with their resolution
+ * - kind(int node)/isStmt(int node)/operand(int node, int i)/line(int node)/type(int node)
+ * - constant(int index)/listSize(int list)/listItem(int list, int i)
+ *   to walk the arrays without decoding(see AstPrinter.print(FlatAst)), the resolver
+ *   and the interpreter still work on the decoded statements
+ * - size(): the number of nodes
+ * - write()/read(bytebuffer bytes): the arrays as bytes, for the cache(see ScriptCache)
+ * - readDeclarations(bytebuffer bytes): read, for declarations which can refer to
+ *   the scopes of their closures(see HeapSnapshot)
+ *
+ * read checks every node before anything is decoded: its kind, its token's type,
+ * its operands(see OPERANDS) and its resolution. a child is always before its
+ * parent, so the nodes can't make a cycle. a resolved slot must be one of the
+ * locals of the block, function or class scope it's in, and a depth can't go past
+ * the top level(or, for declarations, it's left for the closure to check).
+ * bad bytes throw IllegalArgumentException.
+ */
+package com.craftinginterpreters.lox;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class FlatAst {
+  static final int STMT = 16;
+  private static final TokenType[] TYPES = TokenType.values();
+
+  // the operands of each kind, checked by read:
+  // e: an expression, E: an expression or none, s: a statement, S: a statement or none,
+  // v: a variable or none, n: a name's constant, c: any constant, x: a list of expressions,
+  // t: a list of statements, m: a list of functions, p: params, -: not used
+  private static final String[] OPERANDS = new String[STMT + Stmt.WHILE + 1];
+  static {
+    OPERANDS[Expr.ASSIGN] = "ne-";
+    OPERANDS[Expr.BINARY] = "een";
+    OPERANDS[Expr.CALL] = "ex-";
+    OPERANDS[Expr.GET] = "en-";
+    OPERANDS[Expr.GROUPING] = "e--";
+    OPERANDS[Expr.LITERAL] = "c--";
+    OPERANDS[Expr.LOGICAL] = "een";
+    OPERANDS[Expr.SET] = "ene";
+    OPERANDS[Expr.SUPER] = "n--";
+    OPERANDS[Expr.THIS] = "---";
+    OPERANDS[Expr.UNARY] = "en-";
+    OPERANDS[Expr.VARIABLE] = "n--";
+    OPERANDS[STMT + Stmt.BLOCK] = "t--";
+    OPERANDS[STMT + Stmt.CLASS] = "nvm";
+    OPERANDS[STMT + Stmt.EXPRESSION] = "e--";
+    OPERANDS[STMT + Stmt.FUNCTION] = "npt";
+    OPERANDS[STMT + Stmt.IF] = "esS";
+    OPERANDS[STMT + Stmt.IMPORT] = "nn-";
+    OPERANDS[STMT + Stmt.PRINT] = "e--";
+    OPERANDS[STMT + Stmt.RETURN] = "E--";
+    OPERANDS[STMT + Stmt.VAR] = "nE-";
+    OPERANDS[STMT + Stmt.WHILE] = "es-";
+  }
+
+  private int[] nodes = new int[256];
+  private int[] lines = new int[64];
+  private long[] resolved = new long[64];
+  private int nodeCount = 0;
+  private int[] lists = new int[64];
+  private int listsSize = 0;
+  private Object[] constants = new Object[64];
+  private int constantCount = 0;
+  // only while encoding
+  private Map<Object, Integer> constantIndex = new HashMap<>();
+  private int root;
+
+  private FlatAst() {}
+
+  static FlatAst encode(List<Stmt> statements) {
+    FlatAst ast = new FlatAst();
+    ast.root = ast.statements(statements);
+    ast.trim();
+    return ast;
+  }
+
+  int size() {
+    return nodeCount;
+  }
+
+  int root() {
+    return root;
+  }
+
+  int kind(int node) {
+    return nodes[node * 4] & 0xFF;
+  }
+
+  boolean isStmt(int node) {
+    return kind(node) >= STMT;
+  }
+
+  int operand(int node, int i) {
+    return nodes[node * 4 + 1 + i];
+  }
+
+  int line(int node) {
+    return lines[node];
+  }
+
+  TokenType type(int node) {
+    return TYPES[nodes[node * 4] >>> 8];
+  }
+
+  Object constant(int index) {
+    return constants[index];
+  }
+
+  int listSize(int list) {
+    return lists[list];
+  }
+
+  int listItem(int list, int i) {
+    return lists[list + 1 + i];
+  }
+
+  // encode
+
+  private int expr(Expr expr) {
+    if (expr == null) return -1;
+    switch (expr.kind) {
+      case Expr.ASSIGN: {
+        Expr.Assign assign = (Expr.Assign)expr;
+        return resolved(node(Expr.ASSIGN, assign.name, constant(assign.name.lexeme), expr(assign.value), -1), expr);
+      }
+      case Expr.BINARY: {
+        Expr.Binary binary = (Expr.Binary)expr;
+        return node(Expr.BINARY, binary.operator, expr(binary.left), expr(binary.right), constant(binary.operator.lexeme));
+      }
+      case Expr.CALL: {
+        Expr.Call call = (Expr.Call)expr;
+        int callee = expr(call.callee);
+        int[] arguments = new int[call.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) arguments[i] = expr(call.arguments.get(i));
+        return node(Expr.CALL, call.paren, callee, list(arguments), -1);
+      }
+      case Expr.GET: {
+        Expr.Get get = (Expr.Get)expr;
+        return node(Expr.GET, get.name, expr(get.object), constant(get.name.lexeme), -1);
+      }
+      case Expr.GROUPING:
+        return node(Expr.GROUPING, null, expr(((Expr.Grouping)expr).expression), -1, -1);
+      case Expr.LITERAL:
+        return node(Expr.LITERAL, null, constant(((Expr.Literal)expr).value), -1, -1);
+      case Expr.LOGICAL: {
+        Expr.Logical logical = (Expr.Logical)expr;
+        return node(Expr.LOGICAL, logical.operator, expr(logical.left), expr(logical.right), constant(logical.operator.lexeme));
+      }
+      case Expr.SET: {
+        Expr.Set set = (Expr.Set)expr;
+        return node(Expr.SET, set.name, expr(set.object), constant(set.name.lexeme), expr(set.value));
+      }
+      case Expr.SUPER: {
+        Expr.Super superExpr = (Expr.Super)expr;
+        return resolved(node(Expr.SUPER, superExpr.method, constant(superExpr.method.lexeme), -1, -1), expr);
+      }
+      case Expr.THIS:
+        return resolved(node(Expr.THIS, ((Expr.This)expr).keyword, -1, -1, -1), expr);
+      case Expr.UNARY: {
+        Expr.Unary unary = (Expr.Unary)expr;
+        return node(Expr.UNARY, unary.operator, expr(unary.right), constant(unary.operator.lexeme), -1);
+      }
+      case Expr.VARIABLE: {
+        Expr.Variable variable = (Expr.Variable)expr;
+        return resolved(node(Expr.VARIABLE, variable.name, constant(variable.name.lexeme), -1, -1), expr);
+      }
+      default:
+        throw new IllegalStateException("Unknown expression kind " + expr.kind + ".");
+    }
+  }
+
+  private int stmt(Stmt stmt) {
+    if (stmt == null) return -1;
+    int node;
+    switch (stmt.kind) {
+      case Stmt.BLOCK:
+        node = node(STMT + Stmt.BLOCK, null, statements(((Stmt.Block)stmt).statements), -1, -1);
+        break;
+      case Stmt.CLASS: {
+        Stmt.Class classStmt = (Stmt.Class)stmt;
+        int superclass = expr(classStmt.superclass);
+        node = node(STMT + Stmt.CLASS, classStmt.name, constant(classStmt.name.lexeme),
+                    superclass, statements(classStmt.methods));
+        break;
+      }
+      case Stmt.EXPRESSION:
+        node = node(STMT + Stmt.EXPRESSION, null, expr(((Stmt.Expression)stmt).expression), -1, -1);
+        break;
+      case Stmt.FUNCTION: {
+        Stmt.Function function = (Stmt.Function)stmt;
+        int[] params = new int[function.params.size() * 2];
+        for (int i = 0; i < function.params.size(); i++) {
+          Token param = function.params.get(i);
+          params[i * 2] = constant(param.lexeme);
+          params[i * 2 + 1] = param.line;
+        }
+        int body = statements(function.body);
+        node = node(STMT + Stmt.FUNCTION, function.name, constant(function.name.lexeme), list(params), body);
+        break;
+      }
+      case Stmt.IF: {
+        Stmt.If ifStmt = (Stmt.If)stmt;
+        int condition = expr(ifStmt.condition);
+        int thenBranch = stmt(ifStmt.thenBranch);
+        node = node(STMT + Stmt.IF, null, condition, thenBranch, stmt(ifStmt.elseBranch));
+        break;
+      }
+      case Stmt.IMPORT: {
+        Stmt.Import importStmt = (Stmt.Import)stmt;
+        node = node(STMT + Stmt.IMPORT, importStmt.name, constant(importStmt.name.lexeme),
+                    constant(importStmt.path.literal), -1);
+        break;
+      }
+      case Stmt.PRINT:
+        node = node(STMT + Stmt.PRINT, null, expr(((Stmt.Print)stmt).expression), -1, -1);
+        break;
+      case Stmt.RETURN: {
+        Stmt.Return returnStmt = (Stmt.Return)stmt;
+        node = node(STMT + Stmt.RETURN, returnStmt.keyword, expr(returnStmt.value), -1, -1);
+        break;
+      }
+      case Stmt.VAR: {
+        Stmt.Var var = (Stmt.Var)stmt;
+        node = node(STMT + Stmt.VAR, var.name, constant(var.name.lexeme), expr(var.initializer), -1);
+        break;
+      }
+      case Stmt.WHILE: {
+        Stmt.While whileStmt = (Stmt.While)stmt;
+        int condition = expr(whileStmt.condition);
+        node = node(STMT + Stmt.WHILE, null, condition, stmt(whileStmt.body), -1);
+        break;
+      }
+      default:
+        throw new IllegalStateException("Unknown statement kind " + stmt.kind + ".");
+    }
+    resolved[node] = (stmt.escapes ? Long.MIN_VALUE : 0) | ((long)stmt.locals << 32) | (stmt.slot & 0xFFFFFFFFL);
+    return node;
+  }
+
+  private int statements(List<? extends Stmt> statements) {
+    int[] items = new int[statements.size()];
+    for (int i = 0; i < items.length; i++) items[i] = stmt(statements.get(i));
+    return list(items);
+  }
+
+  // token is the node's main token, only its type and line are kept
+  private int node(int kind, Token token, int a, int b, int c) {
+    if ((nodeCount + 1) * 4 > nodes.length) nodes = Arrays.copyOf(nodes, nodes.length * 2);
+    if (nodeCount == lines.length) {
+      lines = Arrays.copyOf(lines, nodeCount * 2);
+      resolved = Arrays.copyOf(resolved, nodeCount * 2);
+    }
+    int node = nodeCount++;
+    int type = token == null ? 0 : token.type.ordinal();
+    nodes[node * 4] = kind | type << 8;
+    nodes[node * 4 + 1] = a;
+    nodes[node * 4 + 2] = b;
+    nodes[node * 4 + 3] = c;
+    lines[node] = token == null ? 0 : token.line;
+    // not resolved: depth and slot are -1
+    resolved[node] = -1L;
+    return node;
+  }
+
+  private int resolved(int node, Expr expr) {
+    resolved[node] = ((long)expr.depth << 32) | (expr.slot & 0xFFFFFFFFL);
+    return node;
+  }
+
+  private int list(int[] items) {
+    if (listsSize + items.length + 1 > lists.length) {
+      lists = Arrays.copyOf(lists, Math.max(lists.length * 2, listsSize + items.length + 1));
+    }
+    int list = listsSize;
+    lists[listsSize++] = items.length;
+    System.arraycopy(items, 0, lists, listsSize, items.length);
+    listsSize += items.length;
+    return list;
+  }
+
+  private int constant(Object value) {
+    Integer index = constantIndex.get(value);
+    if (index == null) {
+      if (constantCount == constants.length) constants = Arrays.copyOf(constants, constantCount * 2);
+      index = constantCount;
+      constants[constantCount++] = value;
+      constantIndex.put(value, index);
+    }
+    return index;
+  }
+
+  // drop the room left for growing
+  private void trim() {
+    nodes = Arrays.copyOf(nodes, nodeCount * 4);
+    lines = Arrays.copyOf(lines, nodeCount);
+    resolved = Arrays.copyOf(resolved, nodeCount);
+    lists = Arrays.copyOf(lists, listsSize);
+    constants = Arrays.copyOf(constants, constantCount);
+    constantIndex = null;
+  }
+
+  // bytes: the counts, then nodes, lines, resolved, lists and constants,
+  // a constant is a tag byte(CONSTANT_*) and its value
+  private static final byte CONSTANT_NIL = 0;
+  private static final byte CONSTANT_TRUE = 1;
+  private static final byte CONSTANT_FALSE = 2;
+  private static final byte CONSTANT_NUMBER = 3;
+  private static final byte CONSTANT_STRING = 4;
+
+  ByteBuffer write() {
+    byte[][] strings = new byte[constantCount][];
+    int size = 4 * 4 + nodeCount * (4 * 4 + 4 + 8) + listsSize * 4;
+    for (int i = 0; i < constantCount; i++) {
+      Object constant = constants[i];
+      if (constant instanceof String) {
+        strings[i] = ((String)constant).getBytes(StandardCharsets.UTF_8);
+        size += 1 + 4 + strings[i].length;
+      } else {
+        size += constant instanceof Double ? 1 + 8 : 1;
+      }
+    }
+
+    ByteBuffer bytes = ByteBuffer.allocate(size);
+    bytes.putInt(nodeCount).putInt(listsSize).putInt(constantCount).putInt(root);
+    bytes.asIntBuffer().put(nodes, 0, nodeCount * 4);
+    bytes.position(bytes.position() + nodeCount * 4 * 4);
+    bytes.asIntBuffer().put(lines, 0, nodeCount);
+    bytes.position(bytes.position() + nodeCount * 4);
+    bytes.asLongBuffer().put(resolved, 0, nodeCount);
+    bytes.position(bytes.position() + nodeCount * 8);
+    bytes.asIntBuffer().put(lists, 0, listsSize);
+    bytes.position(bytes.position() + listsSize * 4);
+    for (int i = 0; i < constantCount; i++) {
+      Object constant = constants[i];
+      if (constant == null) {
+        bytes.put(CONSTANT_NIL);
+      } else if (constant instanceof Boolean) {
+        bytes.put((Boolean)constant ? CONSTANT_TRUE : CONSTANT_FALSE);
+      } else if (constant instanceof Double) {
+        bytes.put(CONSTANT_NUMBER).putDouble((Double)constant);
+      } else {
+        bytes.put(CONSTANT_STRING).putInt(strings[i].length).put(strings[i]);
+      }
+    }
+    bytes.flip();
+    return bytes;
+  }
+
+  // bad bytes throw IllegalArgumentException
+  static FlatAst read(ByteBuffer bytes) {
+    return read(bytes, false);
+  }
+
+  static FlatAst readDeclarations(ByteBuffer bytes) {
+    return read(bytes, true);
+  }
+
+  // declarations: a depth past the top level is in a closure, not a bad one
+  private static FlatAst read(ByteBuffer bytes, boolean declarations) {
+    try {
+      FlatAst ast = readArrays(bytes);
+      ast.check();
+      ast.checkSlots(ast.root, new ArrayList<>(), declarations);
+      return ast;
+    } catch (BufferUnderflowException error) {
+      throw new IllegalArgumentException("The bytes end too soon.", error);
+    }
+  }
+
+  private static FlatAst readArrays(ByteBuffer bytes) {
+    FlatAst ast = new FlatAst();
+    ast.nodeCount = bytes.getInt();
+    ast.listsSize = bytes.getInt();
+    ast.constantCount = bytes.getInt();
+    ast.root = bytes.getInt();
+    if (ast.nodeCount < 0 || ast.listsSize < 0 || ast.constantCount < 0
+        || (long)ast.nodeCount * (4 * 4 + 4 + 8) + (long)ast.listsSize * 4 + ast.constantCount > bytes.remaining()) {
+      throw new IllegalArgumentException("Sizes don't fit the bytes.");
+    }
+
+    ast.nodes = new int[ast.nodeCount * 4];
+    bytes.asIntBuffer().get(ast.nodes);
+    bytes.position(bytes.position() + ast.nodes.length * 4);
+    ast.lines = new int[ast.nodeCount];
+    bytes.asIntBuffer().get(ast.lines);
+    bytes.position(bytes.position() + ast.lines.length * 4);
+    ast.resolved = new long[ast.nodeCount];
+    bytes.asLongBuffer().get(ast.resolved);
+    bytes.position(bytes.position() + ast.resolved.length * 8);
+    ast.lists = new int[ast.listsSize];
+    bytes.asIntBuffer().get(ast.lists);
+    bytes.position(bytes.position() + ast.lists.length * 4);
+
+    ast.constants = new Object[ast.constantCount];
+    for (int i = 0; i < ast.constantCount; i++) {
+      byte tag = bytes.get();
+      switch (tag) {
+        case CONSTANT_NIL: break;
+        case CONSTANT_TRUE: ast.constants[i] = true; break;
+        case CONSTANT_FALSE: ast.constants[i] = false; break;
+        case CONSTANT_NUMBER: ast.constants[i] = bytes.getDouble(); break;
+        case CONSTANT_STRING: {
+          int length = bytes.getInt();
+          if (length < 0 || length > bytes.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length + ".");
+          }
+          byte[] string = new byte[length];
+          bytes.get(string);
+          ast.constants[i] = new String(string, StandardCharsets.UTF_8);
+          break;
+        }
+        default:
+          throw new IllegalArgumentException("Unknown constant tag " + tag + ".");
+      }
+    }
+    ast.constantIndex = null;
+    return ast;
+  }
+
+  private void check() {
+    for (int node = 0; node < nodeCount; node++) {
+      int kind = kind(node);
+      if (kind >= OPERANDS.length || OPERANDS[kind] == null) throw bad(node, "has an unknown kind " + kind);
+      if (nodes[node * 4] >>> 8 >= TYPES.length) throw bad(node, "has an unknown token type");
+      for (int i = 0; i < 3; i++) checkOperand(node, OPERANDS[kind].charAt(i), operand(node, i));
+
+      // a scope can't have more slots than there are declarations and params
+      int slot = (int)resolved[node];
+      int high = (int)(resolved[node] >> 32);
+      int locals = high & 0x7FFFFFFF;
+      if (slot < -1 || (isStmt(node) ? locals > nodeCount + listsSize : high < -1)) {
+        throw bad(node, "has a bad resolution");
+      }
+    }
+    if (root < 0 || root >= listsSize) throw new IllegalArgumentException("Bad root list " + root + ".");
+    checkList(nodeCount, root, 's');
+  }
+
+  // the slots of the statements in list and their children, scopes are the locals
+  // of the scopes around them, innermost last
+  private void checkSlots(int list, List<Integer> scopes, boolean declarations) {
+    for (int i = 0; i < listSize(list); i++) checkNodeSlots(listItem(list, i), scopes, declarations);
+  }
+
+  private void checkNodeSlots(int node, List<Integer> scopes, boolean declarations) {
+    if (node == -1) return;
+    int kind = kind(node);
+    int slot = (int)resolved[node];
+    int high = (int)(resolved[node] >> 32);
+    if (!isStmt(node)) {
+      if (kind == Expr.ASSIGN || kind == Expr.SUPER || kind == Expr.THIS || kind == Expr.VARIABLE) {
+        checkSlot(node, high, slot, scopes, declarations);
+      }
+      checkChildSlots(node, scopes, declarations);
+      return;
+    }
+
+    // a declaration's slot is in the scope it's in
+    if (slot != -1) checkSlot(node, 0, slot, scopes, declarations);
+    int locals = high & 0x7FFFFFFF;
+    switch (kind - STMT) {
+      case Stmt.BLOCK:
+        scopes.add(locals);
+        checkChildSlots(node, scopes, declarations);
+        scopes.remove(scopes.size() - 1);
+        return;
+      case Stmt.CLASS: {
+        // "super" and "this" are the only local of their scopes
+        int superclass = operand(node, 1);
+        checkNodeSlots(superclass, scopes, declarations);
+        if (superclass != -1) scopes.add(1);
+        scopes.add(1);
+        checkSlots(operand(node, 2), scopes, declarations);
+        scopes.remove(scopes.size() - 1);
+        if (superclass != -1) scopes.remove(scopes.size() - 1);
+        return;
+      }
+      case Stmt.FUNCTION:
+        if (listSize(operand(node, 1)) / 2 > locals) throw bad(node, "has more params than locals");
+        scopes.add(locals);
+        checkSlots(operand(node, 2), scopes, declarations);
+        scopes.remove(scopes.size() - 1);
+        return;
+      default:
+        checkChildSlots(node, scopes, declarations);
+    }
+  }
+
+  // the expressions and statements under node
+  private void checkChildSlots(int node, List<Integer> scopes, boolean declarations) {
+    String operands = OPERANDS[kind(node)];
+    for (int i = 0; i < 3; i++) {
+      switch (operands.charAt(i)) {
+        case 'e': case 'E': case 's': case 'S': case 'v':
+          checkNodeSlots(operand(node, i), scopes, declarations);
+          break;
+        case 'x': case 't': case 'm':
+          checkSlots(operand(node, i), scopes, declarations);
+          break;
+        default:
+      }
+    }
+  }
+
+  // depth -1 is a global, which has no slot
+  private void checkSlot(int node, int depth, int slot, List<Integer> scopes, boolean declarations) {
+    boolean ok;
+    if (depth == -1) {
+      ok = slot == -1;
+    } else if (depth < scopes.size()) {
+      ok = slot >= 0 && slot < scopes.get(scopes.size() - 1 - depth);
+    } else {
+      ok = declarations && depth >= 0 && slot >= 0;
+    }
+    if (!ok) throw bad(node, "has a bad slot " + slot + " at depth " + depth);
+  }
+
+  private void checkOperand(int node, char operand, int value) {
+    switch (operand) {
+      case 'E': case 'S': case 'v':
+        if (value == -1) return;
+        checkChild(node, value, operand == 'v' ? 'v' : Character.toLowerCase(operand));
+        return;
+      case 'e': case 's': checkChild(node, value, operand); return;
+      case 'n': case 'c':
+        if (value < 0 || value >= constantCount || (operand == 'n' && !(constants[value] instanceof String))) {
+          throw bad(node, "has a bad constant " + value);
+        }
+        return;
+      case 'x': checkList(node, value, 'e'); return;
+      case 't': checkList(node, value, 's'); return;
+      case 'm': checkList(node, value, 'f'); return;
+      case 'p':
+        checkList(node, value, 'p');
+        for (int i = 0; i < listSize(value); i += 2) checkOperand(node, 'n', listItem(value, i));
+        return;
+      default:
+    }
+  }
+
+  // child is a node before parent, of the kind: e(xpression), s(tatement), f(unction) or v(ariable)
+  private void checkChild(int parent, int child, char kind) {
+    boolean ok = child >= 0 && child < parent;
+    if (ok) {
+      switch (kind) {
+        case 'e': ok = !isStmt(child); break;
+        case 's': ok = isStmt(child); break;
+        case 'f': ok = kind(child) == STMT + Stmt.FUNCTION; break;
+        default: ok = kind(child) == Expr.VARIABLE;
+      }
+    }
+    if (!ok) throw bad(parent, "has a bad child " + child);
+  }
+
+  // items: child nodes of the kind, or p: pairs of a param's name and line
+  private void checkList(int parent, int list, char items) {
+    if (list < 0 || list >= listsSize || lists[list] < 0 || lists[list] > listsSize - list - 1
+        || (items == 'p' && lists[list] % 2 != 0)) {
+      throw new IllegalArgumentException("Bad list " + list + ".");
+    }
+    if (items == 'p') return;
+    for (int i = 0; i < listSize(list); i++) checkChild(parent, listItem(list, i), items);
+  }
+
+  private static IllegalArgumentException bad(int node, String message) {
+    return new IllegalArgumentException("Node " + node + " " + message + ".");
+  }
+
+  // decode
+
+  List<Stmt> decode() {
+    return decodeStatements(root);
+  }
+
+  Expr decodeExpr(int node) {
+    if (node == -1) return null;
+    int a = operand(node, 0);
+    int b = operand(node, 1);
+    int c = operand(node, 2);
+    Expr expr;
+    switch (kind(node)) {
+      case Expr.ASSIGN: expr = new Expr.Assign(token(node, a), decodeExpr(b)); break;
+      case Expr.BINARY: expr = new Expr.Binary(decodeExpr(a), token(node, c), decodeExpr(b)); break;
+      case Expr.CALL: {
+        List<Expr> arguments = new ArrayList<>(listSize(b));
+        for (int i = 0; i < listSize(b); i++) arguments.add(decodeExpr(listItem(b, i)));
+        expr = new Expr.Call(decodeExpr(a), new Token(type(node), ")", null, line(node)), arguments);
+        break;
+      }
+      case Expr.GET: expr = new Expr.Get(decodeExpr(a), token(node, b)); break;
+      case Expr.GROUPING: expr = new Expr.Grouping(decodeExpr(a)); break;
+      case Expr.LITERAL: expr = new Expr.Literal(constant(a)); break;
+      case Expr.LOGICAL: expr = new Expr.Logical(decodeExpr(a), token(node, c), decodeExpr(b)); break;
+      case Expr.SET: expr = new Expr.Set(decodeExpr(a), token(node, b), decodeExpr(c)); break;
+      case Expr.SUPER:
+        expr = new Expr.Super(new Token(TokenType.SUPER, "super", null, line(node)), token(node, a));
+        break;
+      case Expr.THIS: expr = new Expr.This(new Token(type(node), "this", null, line(node))); break;
+      case Expr.UNARY: expr = new Expr.Unary(token(node, b), decodeExpr(a)); break;
+      case Expr.VARIABLE: expr = new Expr.Variable(token(node, a)); break;
+      default:
+        throw new IllegalStateException("Node " + node + " isn't an expression.");
+    }
+    expr.depth = (int)(resolved[node] >> 32);
+    expr.slot = (int)resolved[node];
+    return expr;
+  }
+
+  Stmt decodeStmt(int node) {
+    if (node == -1) return null;
+    int a = operand(node, 0);
+    int b = operand(node, 1);
+    int c = operand(node, 2);
+    Stmt stmt;
+    switch (kind(node) - STMT) {
+      case Stmt.BLOCK: stmt = new Stmt.Block(decodeStatements(a)); break;
+      case Stmt.CLASS: {
+        List<Stmt.Function> methods = new ArrayList<>(listSize(c));
+        for (int i = 0; i < listSize(c); i++) methods.add((Stmt.Function)decodeStmt(listItem(c, i)));
+        stmt = new Stmt.Class(token(node, a), (Expr.Variable)decodeExpr(b), methods);
+        break;
+      }
+      case Stmt.EXPRESSION: stmt = new Stmt.Expression(decodeExpr(a)); break;
+      case Stmt.FUNCTION: {
+        List<Token> params = new ArrayList<>(listSize(b) / 2);
+        for (int i = 0; i < listSize(b); i += 2) {
+          String name = (String)constant(listItem(b, i));
+          params.add(new Token(TokenType.IDENTIFIER, name, null, listItem(b, i + 1)));
+        }
+        stmt = new Stmt.Function(token(node, a), params, decodeStatements(c));
+        break;
+      }
+      case Stmt.IF: stmt = new Stmt.If(decodeExpr(a), decodeStmt(b), decodeStmt(c)); break;
+      case Stmt.IMPORT: {
+        String path = (String)constant(b);
+        stmt = new Stmt.Import(new Token(TokenType.IMPORT, "import", null, line(node)),
+            new Token(TokenType.STRING, "\"" + path + "\"", path, line(node)), token(node, a));
+        break;
+      }
+      case Stmt.PRINT: stmt = new Stmt.Print(decodeExpr(a)); break;
+      case Stmt.RETURN:
+        stmt = new Stmt.Return(new Token(type(node), "return", null, line(node)), decodeExpr(a));
+        break;
+      case Stmt.VAR: stmt = new Stmt.Var(token(node, a), decodeExpr(b)); break;
+      case Stmt.WHILE: stmt = new Stmt.While(decodeExpr(a), decodeStmt(b)); break;
+      default:
+        throw new IllegalStateException("Node " + node + " isn't a statement.");
+    }
+    stmt.slot = (int)resolved[node];
+    stmt.locals = (int)(resolved[node] >>> 32) & 0x7FFFFFFF;
+    stmt.escapes = resolved[node] < 0;
+    return stmt;
+  }
+
+  private List<Stmt> decodeStatements(int list) {
+    List<Stmt> statements = new ArrayList<>(listSize(list));
+    for (int i = 0; i < listSize(list); i++) statements.add(decodeStmt(listItem(list, i)));
+    return statements;
+  }
+
+  // the node's main token, its lexeme is the constant
+  private Token token(int node, int lexeme) {
+    return new Token(type(node), (String)constant(lexeme), null, line(node));
+  }
+}
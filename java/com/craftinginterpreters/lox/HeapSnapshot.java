@@ -0,0 +1,625 @@
+/*
+ * HeapSnapshot: the globals of a finished program saved in a file, so another
+ * process starts with them without parsing or running the program again
+ *
+ * everything the globals refer to is saved: functions(with their resolved
+ * declarations and closures), classes, instances and local environments.
+ * references are kept, an object two globals refer to is loaded once, and
+ * cycles(e.g. a recursive local function) are fine.
+ *
+ * file: MAGIC, VERSION, the sha-256 of the rest(a changed byte is a broken snapshot),
+ * the declarations' flat ast(see FlatAst), then the objects:
+ * - the local environments' sizes(SUPER_SCOPE for a super scope), classes(superclass first),
+ *   functions and instances,
+ *   which are made first, empty
+ * - the environments' slots, the classes' methods and the instances' fields
+ * - the globals
+ * a value is a tag and nil, a boolean, a number, a string, an object's index,
+ * the globals(a closure of a top-level function) or a native's global name.
+ *
+ * - write(path file, interpreter interpreter): save the interpreter's globals
+ * - read(path file, interpreter interpreter): define the saved globals in the interpreter,
+ *   after checking every saved function's resolved slots fit its scopes and closure
+ */
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class HeapSnapshot {
+  private static final int MAGIC = 0x4C4F5848; // "LOXH"
+  // change it whenever the ast, its encoding or this format changes
+  private static final int VERSION = 4;
+  private static final int DIGEST_SIZE = 32;
+
+  private static final byte VALUE_NIL = 0;
+  private static final byte VALUE_TRUE = 1;
+  private static final byte VALUE_FALSE = 2;
+  private static final byte VALUE_NUMBER = 3;
+  private static final byte VALUE_STRING = 4;
+  private static final byte VALUE_OBJECT = 5;
+  private static final byte VALUE_GLOBALS = 6;
+  private static final byte VALUE_NATIVE = 7;
+  // the size saved for a super scope(see Environment.superScope)
+  private static final int SUPER_SCOPE = -1;
+
+  // write
+
+  private final List<Environment.Local> environments = new ArrayList<>();
+  private final List<LoxClass> classes = new ArrayList<>();
+  private final List<LoxFunction> functions = new ArrayList<>();
+  private final List<LoxInstance> instances = new ArrayList<>();
+  private final Map<Object, Integer> ids = new IdentityHashMap<>();
+  private final Map<Stmt.Function, Integer> declarations = new IdentityHashMap<>();
+  private final List<Stmt> declarationList = new ArrayList<>();
+  // native => the global it's defined as
+  private final Map<Object, String> natives = new IdentityHashMap<>();
+
+  private HeapSnapshot() {}
+
+  // throws IllegalStateException if something can't be saved
+  static void write(Path file, Interpreter interpreter) throws IOException {
+    Map<String, Object> globals = interpreter.globals.snapshot();
+    HeapSnapshot snapshot = new HeapSnapshot();
+    // natives are saved by the name every interpreter defines them with
+    for (String name : new Interpreter(null).globals.snapshot().keySet()) {
+      if (isNative(globals.get(name))) snapshot.natives.put(globals.get(name), name);
+    }
+    snapshot.walk(globals.values());
+
+    ByteBuffer ast = FlatAst.encode(snapshot.declarationList).write();
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(payload);
+    data.writeInt(ast.remaining());
+    data.write(ast.array(), ast.arrayOffset() + ast.position(), ast.remaining());
+    snapshot.writeObjects(data, globals);
+    data.flush();
+    byte[] bytes = payload.toByteArray();
+
+    // write a temporary file and move it, a reader never sees half a snapshot
+    Path directory = file.toAbsolutePath().getParent();
+    Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(temporary)) {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(ScriptCache.digest(ByteBuffer.wrap(bytes)));
+        out.write(bytes);
+        out.flush();
+      }
+      Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  private static boolean isNative(Object value) {
+    return value instanceof LoxCallable && !(value instanceof LoxFunction) && !(value instanceof LoxClass);
+  }
+
+  // find every object, with a work list, a long linked list would overflow the stack
+  private void walk(Iterable<Object> roots) {
+    Set<LoxClass> found = new LinkedHashSet<>();
+    Deque<Object> work = new ArrayDeque<>();
+    Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (Object root : roots) if (root != null) work.push(root);
+
+    while (!work.isEmpty()) {
+      Object value = work.pop();
+      if (!seen.add(value)) continue;
+
+      if (value instanceof LoxFunction) {
+        LoxFunction function = (LoxFunction)value;
+        // its module is imported again by the script, not saved
+        if (function.module() != null) {
+          throw new IllegalStateException("Function '" + function + "' of a module can't be saved.");
+        }
+        functions.add(function);
+        declaration(function.declaration());
+        work.push(function.closure());
+      } else if (value instanceof Environment.Local) {
+        Environment.Local environment = (Environment.Local)value;
+        environments.add(environment);
+        if (environment.enclosing != null) work.push(environment.enclosing);
+        for (int slot = 0; slot < environment.size(); slot++) {
+          Object slotValue = environment.get(slot);
+          if (slotValue != null) work.push(slotValue);
+        }
+      } else if (value instanceof LoxClass) {
+        LoxClass klass = (LoxClass)value;
+        found.add(klass);
+        if (klass.superclass != null) work.push(klass.superclass);
+        work.addAll(klass.methods().values());
+      } else if (value instanceof LoxInstance) {
+        LoxInstance instance = (LoxInstance)value;
+        instances.add(instance);
+        work.push(instance.klass());
+        for (Object field : instance.fields().values()) if (field != null) work.push(field);
+      } else if (value instanceof LoxModule) {
+        throw new IllegalStateException("Module '" + ((LoxModule)value).name + "' can't be saved.");
+      } else if (isNative(value) && !natives.containsKey(value)) {
+        throw new IllegalStateException("Native function '" + value + "' can't be saved.");
+      }
+    }
+
+    // a class is made after its superclass
+    for (LoxClass klass : found) addClass(klass);
+
+    for (Environment.Local environment : environments) ids.put(environment, ids.size());
+    for (LoxClass klass : classes) ids.put(klass, ids.size());
+    for (LoxFunction function : functions) ids.put(function, ids.size());
+    for (LoxInstance instance : instances) ids.put(instance, ids.size());
+  }
+
+  private void addClass(LoxClass klass) {
+    if (classes.contains(klass)) return;
+    if (klass.superclass != null) addClass(klass.superclass);
+    classes.add(klass);
+  }
+
+  private void declaration(Stmt.Function declaration) {
+    if (declarations.containsKey(declaration)) return;
+    // a lazy body is parsed now, the loaded one is never lazy
+    if (declaration.body instanceof LazyBody) ((LazyBody)declaration.body).force();
+    declarations.put(declaration, declarationList.size());
+    declarationList.add(declaration);
+  }
+
+  private void writeObjects(DataOutputStream out, Map<String, Object> globals) throws IOException {
+    out.writeInt(environments.size());
+    for (Environment.Local environment : environments) {
+      out.writeInt(environment.isSuper ? SUPER_SCOPE : environment.size());
+    }
+    out.writeInt(classes.size());
+    for (LoxClass klass : classes) {
+      writeString(out, klass.name);
+      out.writeInt(klass.superclass == null ? -1 : ids.get(klass.superclass));
+    }
+    out.writeInt(functions.size());
+    for (LoxFunction function : functions) {
+      out.writeInt(declarations.get(function.declaration()));
+      writeValue(out, function.closure());
+      out.writeBoolean(function.isInitializer());
+    }
+    out.writeInt(instances.size());
+    for (LoxInstance instance : instances) out.writeInt(ids.get(instance.klass()));
+
+    for (Environment.Local environment : environments) {
+      writeValue(out, environment.enclosing);
+      for (int slot = 0; slot < environment.size(); slot++) writeValue(out, environment.get(slot));
+    }
+    for (LoxClass klass : classes) {
+      out.writeInt(klass.methods().size());
+      for (Map.Entry<String, LoxFunction> method : klass.methods().entrySet()) {
+        writeString(out, method.getKey());
+        out.writeInt(ids.get(method.getValue()));
+      }
+    }
+    for (LoxInstance instance : instances) {
+      writeFields(out, instance.fields());
+    }
+
+    // natives are defined by every interpreter, a global which is another name of one is saved
+    Map<String, Object> saved = new HashMap<>(globals);
+    saved.entrySet().removeIf(global -> global.getKey().equals(natives.get(global.getValue())));
+    writeFields(out, saved);
+  }
+
+  private void writeFields(DataOutputStream out, Map<String, Object> fields) throws IOException {
+    out.writeInt(fields.size());
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      writeString(out, field.getKey());
+      writeValue(out, field.getValue());
+    }
+  }
+
+  private void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(VALUE_NIL);
+    } else if (value instanceof Boolean) {
+      out.writeByte((Boolean)value ? VALUE_TRUE : VALUE_FALSE);
+    } else if (value instanceof Double) {
+      out.writeByte(VALUE_NUMBER);
+      out.writeDouble((Double)value);
+    } else if (value instanceof String) {
+      out.writeByte(VALUE_STRING);
+      writeString(out, (String)value);
+    } else if (value instanceof Environment.Global) {
+      out.writeByte(VALUE_GLOBALS);
+    } else if (natives.containsKey(value)) {
+      out.writeByte(VALUE_NATIVE);
+      writeString(out, natives.get(value));
+    } else {
+      out.writeByte(VALUE_OBJECT);
+      out.writeInt(ids.get(value));
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  // read
+
+  // a broken, old or foreign file throws IOException
+  static void read(Path file, Interpreter interpreter) throws IOException {
+    ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+    try {
+      if (bytes.getInt() != MAGIC) throw new IOException(file + " is not a snapshot.");
+      if (bytes.getInt() != VERSION) throw new IOException(file + " is a snapshot of another version.");
+      byte[] hash = new byte[DIGEST_SIZE];
+      bytes.get(hash);
+      if (!MessageDigest.isEqual(hash, ScriptCache.digest(bytes))) {
+        throw new IOException(file + " is a broken snapshot.");
+      }
+      int astLength = bytes.getInt();
+      if (astLength < 0 || astLength > bytes.remaining()) {
+        throw new IOException(file + " is a broken snapshot.");
+      }
+      ByteBuffer ast = bytes.slice();
+      ast.limit(astLength);
+      bytes.position(bytes.position() + astLength);
+      new Reader(bytes, FlatAst.readDeclarations(ast).decode(), interpreter).read();
+    } catch (BufferUnderflowException | IllegalArgumentException
+             | IndexOutOfBoundsException | ClassCastException error) {
+      throw new IOException(file + " is a broken snapshot.", error);
+    }
+  }
+
+  private static final class Reader {
+    private final ByteBuffer bytes;
+    private final List<Stmt> declarations;
+    private final Interpreter interpreter;
+    private final Map<String, Object> natives;
+    private final List<Object> objects = new ArrayList<>();
+
+    Reader(ByteBuffer bytes, List<Stmt> declarations, Interpreter interpreter) {
+      this.bytes = bytes;
+      this.declarations = declarations;
+      this.interpreter = interpreter;
+      this.natives = interpreter.globals.snapshot();
+    }
+
+    void read() {
+      // everything is made first, then filled in, so references can go any way
+      int environmentCount = count();
+      for (int i = 0; i < environmentCount; i++) {
+        int size = bytes.getInt();
+        if (size == SUPER_SCOPE) {
+          objects.add(Environment.superScope(null, null));
+          continue;
+        }
+        // every slot is saved with at least a tag, a bigger size is a broken file
+        if (size < 4 || size > bytes.remaining()) {
+          throw new IllegalArgumentException("Bad environment size " + size + ".");
+        }
+        objects.add(new Environment.Local(null, size));
+      }
+      int classCount = count();
+      List<Map<String, LoxFunction>> methods = new ArrayList<>();
+      for (int i = 0; i < classCount; i++) {
+        String name = string();
+        int superclass = bytes.getInt();
+        Map<String, LoxFunction> classMethods = new HashMap<>();
+        methods.add(classMethods);
+        objects.add(new LoxClass(name, superclass == -1 ? null : object(superclass, LoxClass.class), classMethods));
+      }
+      int functionCount = count();
+      for (int i = 0; i < functionCount; i++) {
+        Stmt.Function declaration = (Stmt.Function)declarations.get(bytes.getInt());
+        Environment closure = environment(value());
+        objects.add(new LoxFunction(declaration, closure, bytes.get() != 0));
+      }
+      int instanceCount = count();
+      for (int i = 0; i < instanceCount; i++) {
+        objects.add(new LoxInstance(object(bytes.getInt(), LoxClass.class)));
+      }
+
+      for (int i = 0; i < environmentCount; i++) {
+        Environment.Local environment = (Environment.Local)objects.get(i);
+        environment.enclosing = environment(value());
+        for (int slot = 0; slot < environment.size(); slot++) environment.set(slot, value());
+      }
+      // every chain of enclosing environments ends at the globals, or ancestor() fails mid-script
+      for (int i = 0; i < environmentCount; i++) {
+        Environment environment = (Environment)objects.get(i);
+        for (int depth = 0; environment instanceof Environment.Local; depth++) {
+          if (depth > environmentCount) throw new IllegalArgumentException("Cyclic environments.");
+          environment = environment.enclosing;
+        }
+      }
+      Set<LoxFunction> unbound = Collections.newSetFromMap(new IdentityHashMap<>());
+      for (Map<String, LoxFunction> classMethods : methods) {
+        int methodCount = count();
+        for (int i = 0; i < methodCount; i++) {
+          String name = string();
+          LoxFunction method = object(bytes.getInt(), LoxFunction.class);
+          classMethods.put(name, method);
+          unbound.add(method);
+        }
+      }
+      // a function runs later, the slots it was resolved to must be in the environments it gets
+      for (int i = 0; i < functionCount; i++) {
+        LoxFunction function = (LoxFunction)objects.get(environmentCount + classCount + i);
+        // a method is bound before it's called, which puts the scope of "this" around it
+        new Slots(function.closure(), unbound.contains(function)).function(function.declaration());
+      }
+      for (int i = 0; i < instanceCount; i++) {
+        LoxInstance instance = (LoxInstance)objects.get(environmentCount + classCount + functionCount + i);
+        int fieldCount = count();
+        for (int field = 0; field < fieldCount; field++) instance.fields().put(string(), value());
+      }
+
+      int globalCount = count();
+      for (int i = 0; i < globalCount; i++) {
+        interpreter.globals.define(string(), value());
+      }
+    }
+
+    private Object value() {
+      byte tag = bytes.get();
+      switch (tag) {
+        case VALUE_NIL: return null;
+        case VALUE_TRUE: return true;
+        case VALUE_FALSE: return false;
+        case VALUE_NUMBER: return bytes.getDouble();
+        case VALUE_STRING: return string();
+        case VALUE_OBJECT: return object(bytes.getInt(), Object.class);
+        case VALUE_GLOBALS: return interpreter.globals;
+        case VALUE_NATIVE: {
+          String name = string();
+          if (!isNative(natives.get(name))) throw new IllegalArgumentException("No native '" + name + "'.");
+          return natives.get(name);
+        }
+        default:
+          throw new IllegalArgumentException("Unknown value tag " + tag + ".");
+      }
+    }
+
+    private Environment environment(Object value) {
+      if (!(value instanceof Environment)) throw new IllegalArgumentException("Not an environment.");
+      return (Environment)value;
+    }
+
+    private <T> T object(int id, Class<T> type) {
+      return type.cast(objects.get(id));
+    }
+
+    private int count() {
+      int count = bytes.getInt();
+      if (count < 0 || count > bytes.remaining()) throw new IllegalArgumentException("Bad count " + count + ".");
+      return count;
+    }
+
+    private String string() {
+      byte[] string = new byte[count()];
+      bytes.get(string);
+      return new String(string, StandardCharsets.UTF_8);
+    }
+  }
+
+  // checks every resolved slot of a function against its scopes and then its closure
+  private static final class Slots implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    private final Environment closure;
+    // sizes of the scopes the function opens, innermost last
+    private final List<Integer> scopes = new ArrayList<>();
+
+    Slots(Environment closure, boolean isMethod) {
+      this.closure = closure;
+      if (isMethod) scopes.add(4);
+    }
+
+    void function(Stmt.Function function) {
+      int size = Math.max(4, function.locals);
+      if (function.params.size() > size) throw new IllegalArgumentException("Bad function locals.");
+      scopes.add(size);
+      for (Stmt statement : function.body) statement.accept(this);
+      scopes.remove(scopes.size() - 1);
+    }
+
+    private void declare(int slot) {
+      if (slot == -1) return;
+      if (scopes.isEmpty() || slot < 0 || slot >= scopes.get(scopes.size() - 1)) {
+        throw new IllegalArgumentException("Bad slot " + slot + ".");
+      }
+    }
+
+    private void resolve(Expr expr) {
+      if (expr.depth != -1) resolve(expr.depth, expr.slot);
+    }
+
+    private void resolve(int depth, int slot) {
+      int size;
+      if (depth < 0) {
+        throw new IllegalArgumentException("Bad depth " + depth + ".");
+      } else if (depth < scopes.size()) {
+        size = scopes.get(scopes.size() - 1 - depth);
+      } else {
+        Environment environment = closure;
+        for (int i = scopes.size(); i < depth && environment instanceof Environment.Local; i++) {
+          environment = environment.enclosing;
+        }
+        if (!(environment instanceof Environment.Local)) {
+          throw new IllegalArgumentException("Bad depth " + depth + ".");
+        }
+        size = ((Environment.Local)environment).size();
+      }
+      if (slot < 0 || slot >= size) throw new IllegalArgumentException("Bad slot " + slot + ".");
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+      scopes.add(Math.max(4, stmt.locals));
+      for (Stmt statement : stmt.statements) statement.accept(this);
+      scopes.remove(scopes.size() - 1);
+      return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+      declare(stmt.slot);
+      if (stmt.superclass != null) {
+        stmt.superclass.accept(this);
+        scopes.add(4);
+      }
+      scopes.add(4);
+      for (Stmt.Function method : stmt.methods) function(method);
+      scopes.remove(scopes.size() - 1);
+      if (stmt.superclass != null) scopes.remove(scopes.size() - 1);
+      return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+      stmt.expression.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+      declare(stmt.slot);
+      function(stmt);
+      return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+      stmt.condition.accept(this);
+      stmt.thenBranch.accept(this);
+      if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+      declare(stmt.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+      stmt.expression.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+      if (stmt.value != null) stmt.value.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+      if (stmt.initializer != null) stmt.initializer.accept(this);
+      declare(stmt.slot);
+      return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+      stmt.condition.accept(this);
+      stmt.body.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      expr.value.accept(this);
+      resolve(expr);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      expr.left.accept(this);
+      expr.right.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      expr.callee.accept(this);
+      for (Expr argument : expr.arguments) argument.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      expr.object.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      expr.expression.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      expr.left.accept(this);
+      expr.right.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      expr.object.accept(this);
+      expr.value.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      // "super" is in slot 0 and "this" in slot 0 of the scope inside it
+      resolve(expr.depth, 0);
+      resolve(expr.depth - 1, 0);
+      return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      resolve(expr);
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      expr.right.accept(this);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      resolve(expr);
+      return null;
+    }
+  }
+}
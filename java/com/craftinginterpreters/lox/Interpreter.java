@@ -1,19 +1,66 @@
 package com.craftinginterpreters.lox;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-  final Environment globals = new Environment();
-  private Environment environment = globals;
+  final Environment.Global globals;
+  // the globals the running code sees: a module's while its code runs(see LoxModule), or globals
+  Environment.Global namespace;
+  // the module whose code runs, null for the script's
+  LoxModule module;
+  private Environment environment;
+  // a relative import path starts here: the script's directory, or the module's while it's run
+  Path directory = Paths.get("").toAbsolutePath();
+  // what imported files are read in(see Scanner.read)
+  Charset charset = StandardCharsets.UTF_8;
+  // the modules this interpreter has imported, by path, each one is run once
+  private final Map<Path, LoxModule> modules = new HashMap<>();
+  // where print goes
+  final Output output;
+
+  // recycled frames of the functions which no closure can capture
+  private Environment.Local[] frames = new Environment.Local[16];
+  private int frameCount = 0;
 
-  // store the epxr's ancestor number in locals
-  private final Map<Expr, Integer> locals = new HashMap<>();
+  Interpreter() {
+    this(Output.stdout(Output.DEFAULT_CAPACITY, false, false));
+  }
 
   // constructor: define clock function
-  Interpreter() {
+  Interpreter(Output output) {
+    this(output, new Environment.Global());
+  }
+
+  // globals can start from a snapshot(see Snapshot)
+  Interpreter(Output output, Environment.Global globals) {
+    this.output = output;
+    this.globals = globals;
+    this.namespace = globals;
+    this.environment = globals;
+    defineNatives(globals);
+  }
+
+  // forget the globals of earlier runs, to run another script(see CompiledScript)
+  // the globals of a snapshot it started from are kept, modules are run again
+  void reset() {
+    globals.clear();
+    namespace = globals;
+    module = null;
+    environment = globals;
+    modules.clear();
+    defineNatives(globals);
+  }
+
+  private static void defineNatives(Environment.Global globals) {
     globals.define("clock", new LoxCallable() {
       @Override
       public int arity() { return 0; }
@@ -32,22 +79,62 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   // main entry
   void interpret(List<Stmt> statements) {
     try {
-      for (Stmt statement : statements) {
-        execute(statement);
-      }
+      run(statements);
     } catch (RuntimeError error) {
       Lox.runtimeError(error);
     }
   }
 
-  // return expr's true object
+  // run the statements, a RuntimeError is left to the caller
+  void run(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      execute(statement);
+    }
+  }
+
+  // main entry for the closure compiled program(see ClosureCompiler)
+  void interpret(ClosureCompiler.Step program) {
+    try {
+      program.execute(globals);
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  // return expr's true object, switch on the node kind instead of accept()
   private Object evaluate(Expr expr) {
-    return expr.accept(this);
+    switch (expr.kind) {
+      case Expr.ASSIGN: return visitAssignExpr((Expr.Assign)expr);
+      case Expr.BINARY: return visitBinaryExpr((Expr.Binary)expr);
+      case Expr.CALL: return visitCallExpr((Expr.Call)expr);
+      case Expr.GET: return visitGetExpr((Expr.Get)expr);
+      case Expr.GROUPING: return visitGroupingExpr((Expr.Grouping)expr);
+      case Expr.LITERAL: return visitLiteralExpr((Expr.Literal)expr);
+      case Expr.LOGICAL: return visitLogicalExpr((Expr.Logical)expr);
+      case Expr.SET: return visitSetExpr((Expr.Set)expr);
+      case Expr.SUPER: return visitSuperExpr((Expr.Super)expr);
+      case Expr.THIS: return visitThisExpr((Expr.This)expr);
+      case Expr.UNARY: return visitUnaryExpr((Expr.Unary)expr);
+      case Expr.VARIABLE: return visitVariableExpr((Expr.Variable)expr);
+      default: return expr.accept(this);
+    }
   }
 
-  // execute this stmt
+  // execute this stmt, switch on the node kind instead of accept()
   private void execute(Stmt stmt) {
-    stmt.accept(this);
+    switch (stmt.kind) {
+      case Stmt.BLOCK: visitBlockStmt((Stmt.Block)stmt); break;
+      case Stmt.CLASS: visitClassStmt((Stmt.Class)stmt); break;
+      case Stmt.EXPRESSION: visitExpressionStmt((Stmt.Expression)stmt); break;
+      case Stmt.FUNCTION: visitFunctionStmt((Stmt.Function)stmt); break;
+      case Stmt.IF: visitIfStmt((Stmt.If)stmt); break;
+      case Stmt.IMPORT: visitImportStmt((Stmt.Import)stmt); break;
+      case Stmt.PRINT: visitPrintStmt((Stmt.Print)stmt); break;
+      case Stmt.RETURN: visitReturnStmt((Stmt.Return)stmt); break;
+      case Stmt.VAR: visitVarStmt((Stmt.Var)stmt); break;
+      case Stmt.WHILE: visitWhileStmt((Stmt.While)stmt); break;
+      default: stmt.accept(this);
+    }
   }
 
 
@@ -56,7 +143,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
+    executeBlock(stmt.statements, Environment.create(environment, stmt.locals));
     return null;
   }
 
@@ -85,15 +172,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
       }
     }
-    environment.define(stmt.name.lexeme, null);
+    define(stmt, stmt.name, null);
     if (stmt.superclass != null) {
-      environment = new Environment(environment);
-      environment.define("super", superclass);
+      environment = Environment.superScope(environment, superclass);
     }
     // 2.alloc methods
     Map<String, LoxFunction> methods = new HashMap<>();
     for (Stmt.Function method : stmt.methods) {
-      LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+      LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"), null, module);
       methods.put(method.name.lexeme, function);
     }
     // 3.merge together to LoxClass and assign it to current environment
@@ -101,7 +187,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     if (superclass != null) {
       environment = environment.enclosing;
     }
-    environment.assign(stmt.name, klass);
+    define(stmt, stmt.name, klass);
     return null;
   }
 
@@ -114,8 +200,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
     // define function in current environment
-    LoxFunction function = new LoxFunction(stmt, environment, false);
-    environment.define(stmt.name.lexeme, function);
+    LoxFunction function = new LoxFunction(stmt, environment, false, null, module);
+    define(stmt, stmt.name, function);
     return null;
   }
 
@@ -129,10 +215,16 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitImportStmt(Stmt.Import stmt) {
+    define(stmt, stmt.name, importModule(stmt));
+    return null;
+  }
+
   @Override
   public Void visitPrintStmt(Stmt.Print stmt) {
     Object value = evaluate(stmt.expression);
-    System.out.println(stringify(value));
+    output.println(stringify(value));
     return null;
   }
 
@@ -150,7 +242,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     if (stmt.initializer != null) {
       value = evaluate(stmt.initializer);
     }
-    environment.define(stmt.name.lexeme, value);
+    define(stmt, stmt.name, value);
     return null;
   }
 
@@ -167,11 +259,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
     Object value = evaluate(expr.value);
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      environment.assignAt(distance, expr.name, value);
+    int distance = expr.depth;
+    if (distance != -1) {
+      environment.assignAt(distance, expr.slot, value);
     } else {
-      globals.assign(expr.name, value);
+      namespace.assign(expr.name, value);
     }
     return value;
   }
@@ -238,7 +330,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
     }
 
-    return function.call(this, arguments);
+    try {
+      return function.call(this, arguments);
+    } catch (StackOverflowError error) {
+      // the call that couldn't get a frame, like any other runtime error
+      throw new RuntimeError(expr.paren, "Stack overflow.");
+    }
   }
 
   @Override
@@ -247,6 +344,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     if (object instanceof LoxInstance) {
       return ((LoxInstance) object).get(expr.name);
     }
+    if (object instanceof LoxModule) {
+      return ((LoxModule) object).get(expr.name);
+    }
 
     throw new RuntimeError(expr.name, "Only instances have properties.");
   }
@@ -293,9 +393,10 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Object visitSuperExpr(Expr.Super expr) {
     // there defined this expr?
-    int distance = locals.get(expr);
-    LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-    LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
+    int distance = expr.depth;
+    // "super" and "this" are both in slot 0 of their scope
+    LoxClass superclass = (LoxClass)environment.getAt(distance, 0);
+    LoxInstance object = (LoxInstance)environment.getAt(distance - 1, 0);
     LoxFunction method = superclass.findMethod(expr.method.lexeme);
 
     if (method == null) {
@@ -337,52 +438,121 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   // help function
 
-  // set epxr's depth in locals(what the fucking name!)
-  void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  // the module stmt imports, it's run the first time this interpreter imports it
+  // and its compiled code is shared by the whole process(see ModuleCache)
+  LoxModule importModule(Stmt.Import stmt) {
+    Path path = directory.resolve((String)stmt.path.literal).normalize();
+    LoxModule imported = modules.get(path);
+    // in an import cycle the module is as far as it has run
+    if (imported != null) return imported;
+
+    CompiledScript script;
+    try {
+      script = ModuleCache.get(path, charset);
+    } catch (IOException error) {
+      throw new RuntimeError(stmt.path, "Can't read module '" + stmt.path.literal + "'.");
+    } catch (CompileError error) {
+      throw new RuntimeError(stmt.path, "Module '" + stmt.path.literal + "' has errors:\n" + error.getMessage());
+    }
+
+    imported = new LoxModule(path, new Environment.Global());
+    defineNatives(imported.globals);
+    modules.put(path, imported);
+    Environment.Global namespace = this.namespace;
+    LoxModule module = this.module;
+    Environment environment = this.environment;
+    Path directory = this.directory;
+    boolean loaded = false;
+    try {
+      this.namespace = imported.globals;
+      this.module = imported;
+      this.environment = imported.globals;
+      this.directory = path.getParent();
+      script.run(this);
+      loaded = true;
+    } catch (RuntimeError error) {
+      // thrown by the module's top-level code, unless a function of it already says where
+      error.locate(imported);
+      throw error;
+    } finally {
+      // a module which failed is run again by the next import
+      if (!loaded) modules.remove(path);
+      this.namespace = namespace;
+      this.module = module;
+      this.environment = environment;
+      this.directory = directory;
+    }
+    return imported;
+  }
+
+  // get a frame for a function call, reuse a recycled one if there is
+  Environment acquireFrame(Environment enclosing) {
+    if (frameCount == 0) return Environment.create(enclosing, 4);
+    Environment.Local frame = frames[--frameCount];
+    frame.enclosing = enclosing;
+    return frame;
+  }
+
+  // give the frame back when the call returns, nothing refers to it anymore
+  void releaseFrame(Environment frame) {
+    Environment.Local local = (Environment.Local)frame;
+    local.clear();
+    if (frameCount == frames.length) {
+      frames = Arrays.copyOf(frames, frameCount * 2);
+    }
+    frames[frameCount++] = local;
+  }
+
+  // define the declared name in its slot, or in globals if it's at top-level
+  private void define(Stmt stmt, Token name, Object value) {
+    if (stmt.slot != -1) {
+      environment.set(stmt.slot, value);
+    } else {
+      namespace.define(name.lexeme, value);
+    }
   }
 
   // get variable in environment
   private Object lookUpVariable(Token name, Expr expr) {
     //1.find at local environment
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      return environment.getAt(distance, name.lexeme);
+    int distance = expr.depth;
+    if (distance != -1) {
+      return environment.getAt(distance, expr.slot);
     } 
     // 2.find at global environment
     else {
-      return globals.get(name);
+      return namespace.get(name);
     }
   }
 
   // operand == number?
-  private void checkNumberOperand(Token operator, Object operand) {
+  static void checkNumberOperand(Token operator, Object operand) {
     if (operand instanceof Double) return;
     throw new RuntimeError(operator, "Operand must be a number.");
   }
 
   // operands == number?
-  private void checkNumberOperands(Token operator, Object left, Object right) {
+  static void checkNumberOperands(Token operator, Object left, Object right) {
     if (left instanceof Double && right instanceof Double) return;
     throw new RuntimeError(operator, "Operands must be numbers.");
   }
 
   // is truthy?
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) return false;
     if (object instanceof Boolean) return (boolean)object;
     return true;
   }
 
   // is equal?
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     if (a == null && b == null) return true;
     if (a == null) return false;
     return a.equals(b);
   }
 
   // stringify
-  private String stringify(Object object) {
+  static String stringify(Object object) {
     // 1.null
     if (object == null) return "nil";
     // 2.double
@@ -0,0 +1,80 @@
+/*
+ * LazyBody: a function's body which is parsed(and resolved) on its first call
+ *
+ * with --lazy the parser only checks the syntax of top-level functions' and
+ * methods' bodies(see Parser.skipBody), most functions of a big library are never
+ * called in a run, so their statements are never made. a body with a syntax error
+ * is parsed at once and reported as usual, the resolver's errors in a body show up
+ * on its first call.
+ *
+ * attributes:
+ * - tokens(TokenBuffer), start(int): the body's tokens, from the one after '{'
+ * - name(token): the function's name, for errors
+ * - resolve(runnable): resolve the parsed body, given by the resolver
+ *
+ * methods:
+ * - force(): parse and resolve the body, if it isn't yet
+ * - isParsed()
+ * - get(int index)/size(): the body's statements, parsed first
+ */
+package com.craftinginterpreters.lox;
+
+import java.util.AbstractList;
+import java.util.List;
+
+class LazyBody extends AbstractList<Stmt> {
+  private final TokenBuffer tokens;
+  private final int start;
+  private final Token name;
+  private Runnable resolve = null;
+  private List<Stmt> statements = null;
+  // a body with errors fails on every call
+  private boolean failed = false;
+
+  LazyBody(TokenBuffer tokens, int start, Token name) {
+    this.tokens = tokens;
+    this.start = start;
+    this.name = name;
+  }
+
+  void resolveWith(Runnable resolve) {
+    this.resolve = resolve;
+  }
+
+  boolean isParsed() {
+    return statements != null;
+  }
+
+  void force() {
+    if (failed) throw new RuntimeError(name, "Function '" + name.lexeme + "' has errors.");
+    if (statements != null) return;
+
+    // errors are reported as usual, but the program is already running
+    boolean hadError = Lox.hadError;
+    Lox.hadError = false;
+    List<Stmt> body = new Parser(tokens).body(start);
+    if (!Lox.hadError) {
+      // the resolver reads the statements through this list
+      statements = body;
+      if (resolve != null) resolve.run();
+    }
+    failed = Lox.hadError;
+    Lox.hadError |= hadError;
+    if (failed) {
+      statements = null;
+      throw new RuntimeError(name, "Function '" + name.lexeme + "' has errors.");
+    }
+  }
+
+  @Override
+  public Stmt get(int index) {
+    force();
+    return statements.get(index);
+  }
+
+  @Override
+  public int size() {
+    force();
+    return statements.size();
+  }
+}
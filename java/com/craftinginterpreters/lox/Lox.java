@@ -3,36 +3,186 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class Lox {
 //> Evaluating Expressions interpreter-instance
-  private static final Interpreter interpreter = new Interpreter();
+  private static Interpreter interpreter;
 //< Evaluating Expressions interpreter-instance
 //> had-error
   static boolean hadError = false;
 //< had-error
 //> Evaluating Expressions had-runtime-error-field
   static boolean hadRuntimeError = false;
+  // --compile: run the program as closures(see ClosureCompiler)
+  private static boolean compile = false;
+  // --buffer=<chars>, --async, --output=<file>: where print goes(see Output)
+  private static int outputBuffer = Output.DEFAULT_CAPACITY;
+  private static boolean asyncOutput = false;
+  private static String outputFile = null;
+  // --charset=<name>: the script's encoding, utf-8(and ascii) is scanned without decoding
+  private static Charset charset = StandardCharsets.UTF_8;
+  // --pipeline: scan, parse and resolve at the same time(see Pipeline)
+  private static boolean pipeline = false;
+  // --stream: run each top-level declaration as soon as it's parsed, the program is never kept whole
+  private static boolean stream = false;
+  private static final int STREAM_BATCH = 1024;
+  // --lazy: parse a top-level function's body on its first call(see LazyBody)
+  private static boolean lazy = false;
+  // --parallel: resolve the top-level statements on all cores(see Resolver.resolveParallel)
+  private static boolean parallel = false;
+  // --cache=<dir>: keep resolved scripts in dir(see ScriptCache)
+  private static String cacheDirectory = null;
+  // --batch[=<times>]: run every script given(times times) at the same time(see Batch)
+  private static int batch = 0;
+  // --prelude=<file>: run it once, every batch run starts from its globals(see Snapshot)
+  private static String prelude = null;
+  // --snapshot=<file>: start with the globals saved in file, --save-snapshot=<file>: save them
+  // when the script is done(see HeapSnapshot)
+  private static String snapshot = null;
+  private static String saveSnapshot = null;
+  // --daemon=<address>: run the scripts clients send(see Daemon), --connect=<address>: be a client
+  private static String daemon = null;
+  private static String connect = null;
+  // --test: run every test script in the directories given(see TestRunner)
+  private static boolean test = false;
 
 //< Evaluating Expressions had-runtime-error-field
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64); // [64]
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    // options come before the script
+    int option = 0;
+    for (; option < args.length && args[option].startsWith("--"); option++) {
+      String[] parts = args[option].split("=", 2);
+      switch (parts[0]) {
+        case "--compile": compile = true; break;
+        case "--buffer": outputBuffer = Integer.parseInt(value(parts)); break;
+        case "--async": asyncOutput = true; break;
+        case "--output": outputFile = value(parts); break;
+        case "--charset": charset = Charset.forName(value(parts)); break;
+        case "--pipeline": pipeline = true; break;
+        case "--stream": stream = true; break;
+        case "--lazy": lazy = true; break;
+        case "--parallel": parallel = true; break;
+        case "--cache": cacheDirectory = value(parts); break;
+        case "--batch": batch = parts.length < 2 ? 1 : Integer.parseInt(parts[1]); break;
+        case "--prelude": prelude = value(parts); break;
+        case "--snapshot": snapshot = value(parts); break;
+        case "--save-snapshot": saveSnapshot = value(parts); break;
+        case "--daemon": daemon = value(parts); break;
+        case "--connect": connect = value(parts); break;
+        case "--test": test = true; break;
+        default: usage();
+      }
+    }
+
+    if (test) {
+      if (args.length == option) usage();
+      List<Path> paths = new ArrayList<>();
+      for (String path : List.of(args).subList(option, args.length)) paths.add(Paths.get(path));
+      System.exit(new TestRunner(paths).run() ? 0 : 1);
+    } else if (daemon != null) {
+      if (args.length != option) usage();
+      Engine engine = new Engine();
+      try {
+        new Daemon(daemon, prelude == null ? null : prelude(engine)).serve();
+      } catch (IOException error) {
+        // e.g. the address is in use
+        System.err.println(error.getMessage());
+        System.exit(74);
+      }
+    } else if (connect != null) {
+      if (args.length - option != 1) usage();
+      ByteBuffer source = source(Paths.get(args[option]));
+      try {
+        System.exit(Daemon.run(connect, directory(args[option]), charset, source));
+      } catch (IOException error) {
+        // e.g. no daemon is there
+        System.err.println("Can't run the script on " + connect + ": " + error.getMessage());
+        System.exit(74);
+      }
+    } else if (batch > 0) {
+      runBatch(List.of(args).subList(option, args.length));
+    } else if (args.length - option > 1) {
+      usage();
+    } else if (args.length - option == 1) {
+      interpreter = new Interpreter(output(false));
+      if (snapshot != null) readSnapshot();
+      runFile(args[option]);
     } else {
+      // the prompt shows every line as soon as it's printed
+      interpreter = new Interpreter(output(true));
+      if (snapshot != null) readSnapshot();
       runPrompt();
     }
   }
+
+  // a missing or broken snapshot is bad input, not a crash
+  private static void readSnapshot() {
+    try {
+      HeapSnapshot.read(Paths.get(snapshot), interpreter);
+    } catch (NoSuchFileException error) {
+      System.err.println("No snapshot " + snapshot + ".");
+      System.exit(66);
+    } catch (IOException error) {
+      System.err.println(error.getMessage());
+      System.exit(65);
+    }
+  }
+
+  private static void usage() {
+    System.out.println("Usage: jlox [--compile] [--buffer=<chars>] [--async] [--output=<file>] [--charset=<name>] [--pipeline] [--stream] [--lazy] [--parallel] [--cache=<dir>] [--snapshot=<file>] [--save-snapshot=<file>] [script]");
+    System.out.println("       jlox --batch[=<times>] [--prelude=<file>] [--charset=<name>] script...");
+    System.out.println("       jlox --test <directory or script>...");
+    System.out.println("       jlox --daemon=<socket file or :port> [--prelude=<file>]");
+    System.out.println("       jlox --connect=<socket file or :port> [--charset=<name>] script");
+    System.exit(64); // [64]
+  }
+
+  // the value of --option=value
+  private static String value(String[] parts) {
+    if (parts.length < 2) usage();
+    return parts[1];
+  }
+
+  private static Output output(boolean interactive) throws IOException {
+    if (outputFile != null) {
+      return Output.file(Paths.get(outputFile), outputBuffer, asyncOutput);
+    }
+    return Output.stdout(outputBuffer, interactive, asyncOutput);
+  }
 //> run-file
   private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+    ByteBuffer source = source(Paths.get(path));
+    interpreter.directory = directory(path);
+    interpreter.charset = charset;
+    if (stream) {
+      stream(new Scanner(source));
+    } else if (cacheDirectory != null) {
+      runCached(source);
+    } else {
+      run(new Scanner(source));
+    }
+    // everything printed must be out before exit
+    interpreter.output.close();
+    if (saveSnapshot != null && !hadError && !hadRuntimeError) {
+      try {
+        HeapSnapshot.write(Paths.get(saveSnapshot), interpreter);
+      } catch (IllegalStateException error) {
+        // e.g. a module's function, the script ran but its globals can't be saved
+        System.err.println(error.getMessage());
+        System.exit(70);
+      }
+    }
 //> exit-code
 
     // Indicate an error in the exit code.
@@ -40,6 +190,58 @@ public class Lox {
     if (hadRuntimeError) System.exit(70);
   }
 
+  // each script is compiled once and run times times, every run in its own context
+  private static void runBatch(List<String> paths) throws IOException {
+    if (paths.isEmpty()) usage();
+    Engine engine = new Engine();
+    List<CompletableFuture<Batch.Run>> runs = new ArrayList<>();
+    long start = System.nanoTime();
+    Snapshot snapshot = prelude == null ? null : prelude(engine);
+    try (Batch runner = new Batch(engine)) {
+      for (String path : paths) {
+        Script script = engine.compile(source(Paths.get(path)), directory(path), charset);
+        for (int i = 1; i <= batch; i++) {
+          runs.add(runner.submit(batch == 1 ? path : path + "#" + i, snapshot, script));
+        }
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    // one line a run, in the order they were given
+    int exitCode = 0;
+    int failed = 0;
+    for (CompletableFuture<Batch.Run> future : runs) {
+      Batch.Run run = future.join();
+      Result result = run.result();
+      System.out.printf("%s: %s %.3f ms%n", run.name(),
+          result.isSuccess() ? "ok" : "error " + result.exitCode(), run.nanos() / 1e6);
+      for (String error : result.errors()) {
+        System.out.println("  " + error.replace("\n", "\n  "));
+      }
+      if (!result.isSuccess()) failed++;
+      exitCode = Math.max(exitCode, result.exitCode());
+    }
+    System.out.printf("%d runs, %d failed, %.3f ms, %.1f runs/s%n",
+        runs.size(), failed, elapsed / 1e6, runs.size() / (elapsed / 1e9));
+    System.exit(exitCode);
+  }
+
+  // run the prelude once, exit as a script would if it fails
+  private static Snapshot prelude(Engine engine) throws IOException {
+    try (Context context = engine.newContext(new OutputStreamWriter(System.out, Charset.defaultCharset()))) {
+      Result result = context.run(engine.compile(source(Paths.get(prelude)), directory(prelude), charset));
+      for (String error : result.errors()) System.err.println(error);
+      if (!result.isSuccess()) System.exit(result.exitCode());
+      try {
+        return context.snapshot();
+      } catch (IllegalStateException error) {
+        System.err.println(prelude + ": " + error.getMessage());
+        System.exit(65);
+        return null;
+      }
+    }
+  }
+
   private static void runPrompt() throws IOException {
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
@@ -48,56 +250,146 @@ public class Lox {
       System.out.print("> ");
       String line = reader.readLine();
       if (line == null) break;
-      run(line);
+      run(new Scanner(line));
 //> reset-had-error
       hadError = false;
 //< reset-had-error
     }
+    interpreter.output.close();
   }
 //< prompt
 //> run
-  private static void run(String source) {
+  // a script's imports are next to it
+  private static Path directory(String path) {
+    return Paths.get(path).toAbsolutePath().getParent();
+  }
+
+  // the script in --charset(see Scanner.read)
+  private static ByteBuffer source(Path path) throws IOException {
+    return Scanner.read(path, charset);
+  }
+
+  private static void run(Scanner scanner) {
+    List<Stmt> statements = analyze(scanner, lazy);
+    if (statements == null) return;
+
+    // 4. interpret
+    interpret(statements);
+  }
+
+  // an unchanged script runs what was resolved before
+  private static void runCached(ByteBuffer source) throws IOException {
+    ScriptCache cache = new ScriptCache(Paths.get(cacheDirectory));
+    String key = ScriptCache.key(source);
+    List<Stmt> statements = cache.load(key);
+    if (statements == null) {
+      // a saved program is complete, so bodies aren't left lazy
+      statements = analyze(new Scanner(source), false);
+      if (statements == null) return;
+      cache.store(key, statements);
+    }
+    interpret(statements);
+  }
+
+  // scan, parse and resolve, null if there is an error
+  private static List<Stmt> analyze(Scanner scanner, boolean lazy) {
+    if (pipeline) {
+      List<Stmt> statements = new Pipeline(scanner).run();
+      return hadError ? null : statements;
+    }
+
     // main:
     // 1. scan
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
+    TokenBuffer tokens = scanner.scanTokens();
 
     // 2. parse
-    Parser parser = new Parser(tokens);
+    Parser parser = new Parser(tokens, lazy);
     List<Stmt> statements = parser.parse();
     
-    if (hadError) return;
+    if (hadError) return null;
 
     // 3. resolve
-    Resolver resolver = new Resolver(interpreter);
-    resolver.resolve(statements);
-    if (hadError) return;
+    if (parallel) {
+      Resolver.resolveParallel(statements);
+    } else {
+      Resolver resolver = new Resolver();
+      resolver.resolve(statements);
+    }
+    if (hadError) return null;
+    return statements;
+  }
 
-    // 4. interpret
-    interpreter.interpret(statements);
+  // scan, parse, resolve and run one top-level declaration at a time, a declaration
+  // can be collected once it has run(unless a closure still needs it).
+  // a program with a syntax error at the end has already run up to it.
+  private static void stream(Scanner scanner) {
+    Parser parser;
+    try {
+      parser = new Parser(() -> scanner.scanBatch(STREAM_BATCH));
+    } catch (InterruptedException error) {
+      throw new IllegalStateException(error); // scanBatch doesn't wait
+    }
+    Resolver resolver = new Resolver();
+    ClosureCompiler compiler = compile ? new ClosureCompiler(interpreter) : null;
+
+    while (parser.hasNext()) {
+      Stmt declaration = parser.next();
+      if (declaration == null) continue;
+      // after an error keep going to report the rest, but don't run anything
+      resolver.resolve(declaration);
+      if (hadError) continue;
+
+      if (compiler != null) {
+        interpreter.interpret(compiler.compile(List.of(declaration)));
+      } else {
+        interpreter.interpret(List.of(declaration));
+      }
+      if (hadRuntimeError) return;
+    }
+  }
+
+  private static void interpret(List<Stmt> statements) {
+    if (compile) {
+      interpreter.interpret(new ClosureCompiler(interpreter).compile(statements));
+    } else {
+      interpreter.interpret(statements);
+    }
   }
 
   static void error(int line, String message) {
-    report(line, "", message);
+    report(message(line, "", message));
+  }
+
+  static void error(Token token, String message) {
+    report(message(token, message));
   }
 
-  private static void report(int line, String where,
-                             String message) {
-    System.err.println(
-        "[line " + line + "] Error" + where + ": " + message);
+  // print an error(see message) and remember there was one
+  static void report(String error) {
+    System.err.println(error);
     hadError = true;
   }
 
-  static void error(Token token, String message) {
+  static String message(int line, String where, String message) {
+    return "[line " + line + "] Error" + where + ": " + message;
+  }
+
+  static String message(Token token, String message) {
     if (token.type == TokenType.EOF) {
-      report(token.line, " at end", message);
-    } else {
-      report(token.line, " at '" + token.lexeme + "'", message);
+      return message(token.line, " at end", message);
     }
+    return message(token.line, " at '" + token.lexeme + "'", message);
   }
   static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() +
-        "\n[line " + error.token.line + "]");
+    // keep what was printed before the error in front of it
+    interpreter.output.flush();
+    System.err.println(message(error));
     hadRuntimeError = true;
   }
+
+  static String message(RuntimeError error) {
+    // a module's error says which file it's in
+    String file = error.module() == null ? "" : " in " + error.module().path;
+    return error.getMessage() + "\n[line " + error.token.line + file + "]";
+  }
 }
\ No newline at end of file
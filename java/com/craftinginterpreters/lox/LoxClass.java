@@ -5,6 +5,8 @@
  * - methods(map<string, loxfinction)
  *
  * - findMethod(string name)
+ * - methods(): its own methods, to save it(see HeapSnapshot)
+ * - isShareable(): can interpreters other than its own use it(see Snapshot)
  * - toString(): return name
  */
 package com.craftinginterpreters.lox;
@@ -36,6 +38,17 @@ class LoxClass implements LoxCallable {
     return null;
   }
 
+  Map<String, LoxFunction> methods() {
+    return methods;
+  }
+
+  boolean isShareable() {
+    for (LoxFunction method : methods.values()) {
+      if (!method.isShareable()) return false;
+    }
+    return superclass == null || superclass.isShareable();
+  }
+
   @Override
   public String toString() {
     return name;
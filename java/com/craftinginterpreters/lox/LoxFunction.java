@@ -3,9 +3,14 @@
  * - decclartion(function)
  * - closure(environment)
  * - isInitializer(bool)
+ * - body(step): the closure compiled body, null when run by the interpreter
+ * - module(LoxModule): the module it's declared in, null
+ *   when it's the script's(see LoxModule)
  * 
  * - bind(LoxInstance instance): bind this function with the instance
  * - arity(): declaration's arguments' size
+ * - isShareable(): can interpreters other than its own call it(see Snapshot)
+ * - declaration()/closure()/isInitializer()/module(): to save it(see HeapSnapshot)
  */
 package com.craftinginterpreters.lox;
 
@@ -16,18 +21,64 @@ class LoxFunction implements LoxCallable {
   private final Environment closure;
   
   private final boolean isInitializer;
+  private final ClosureCompiler.Step body;
+  private final LoxModule module;
 
   LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    this(declaration, closure, isInitializer, null);
+  }
+
+  LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer,
+              ClosureCompiler.Step body) {
+    this(declaration, closure, isInitializer, body, null);
+  }
+
+  LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer,
+              ClosureCompiler.Step body, LoxModule module) {
     this.isInitializer = isInitializer;
     this.closure = closure;
     this.declaration = declaration;
+    this.body = body;
+    this.module = module;
   }
 
   // bind function with this instance(class or something)
   LoxFunction bind(LoxInstance instance) {
-    Environment environment = new Environment(closure);
-    environment.define("this", instance);
-    return new LoxFunction(declaration, environment, isInitializer);
+    // "this" is the only variable in its scope
+    Environment environment = Environment.create(closure, 1);
+    environment.set(0, instance);
+    return new LoxFunction(declaration, environment, isInitializer, body, module);
+  }
+
+  Stmt.Function declaration() {
+    return declaration;
+  }
+
+  Environment closure() {
+    return closure;
+  }
+
+  boolean isInitializer() {
+    return isInitializer;
+  }
+
+  LoxModule module() {
+    return module;
+  }
+
+  // a top-level function or method keeps nothing that changes in its closure,
+  // a closure compiled body refers to its own interpreter's globals, and a
+  // module's globals are its importing interpreter's
+  boolean isShareable() {
+    if (body != null || module != null || declaration.body instanceof LazyBody) return false;
+    for (Environment environment = closure; environment != null; environment = environment.enclosing) {
+      // only a subclass's "super" scope is kept above a top-level method, any other
+      // local scope is a frame whose variables can change
+      if (environment instanceof Environment.Local && !((Environment.Local)environment).isSuper) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
@@ -42,22 +93,49 @@ class LoxFunction implements LoxCallable {
 
   @Override
   public Object call(Interpreter interpreter, List<Object> arguments) {
+    // a lazy body's locals are only known once it's parsed
+    if (declaration.body instanceof LazyBody) ((LazyBody)declaration.body).force();
+
     // 1.set environment
-    Environment environment = new Environment(closure);
+    // params take the first slots of the function's scope
+    // a small frame no closure can capture is recycled after the call
+    boolean recycle = !declaration.escapes && declaration.locals <= 4;
+    Environment environment = recycle
+        ? interpreter.acquireFrame(closure)
+        : Environment.create(closure, declaration.locals);
     for (int i = 0; i < declaration.params.size(); i++) {
-      environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+      environment.set(i, arguments.get(i));
     }
 
     // 2. execute block
+    // its globals are its module's, or the script's when a module calls it back
+    Environment.Global namespace = interpreter.namespace;
+    LoxModule running = interpreter.module;
+    interpreter.namespace = module != null ? module.globals : interpreter.globals;
+    interpreter.module = module;
     try {
-      interpreter.executeBlock(declaration.body, environment);
+      if (body != null) {
+        body.execute(environment);
+      } else {
+        interpreter.executeBlock(declaration.body, environment);
+      }
     }
     catch (Return returnValue) {
-      if (isInitializer) return closure.getAt(0, "this");
+      if (isInitializer) return closure.get(0);
       return returnValue.value;
     }
+    catch (RuntimeError error) {
+      // a runtime error is reported with the file of the function it was thrown in
+      error.locate(module);
+      throw error;
+    }
+    finally {
+      interpreter.namespace = namespace;
+      interpreter.module = running;
+      if (recycle) interpreter.releaseFrame(environment);
+    }
 
-    if (isInitializer) return closure.getAt(0, "this");
+    if (isInitializer) return closure.get(0);
     return null;
   }
 }
\ No newline at end of file
@@ -27,6 +27,15 @@ class LoxInstance {
     fields.put(name.lexeme, value);
   }
 
+  // to save it(see HeapSnapshot)
+  LoxClass klass() {
+    return klass;
+  }
+
+  Map<String, Object> fields() {
+    return fields;
+  }
+
   @Override
   public String toString() {
     return klass.name + " instance";
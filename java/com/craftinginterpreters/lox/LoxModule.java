@@ -0,0 +1,40 @@
+/*
+ * LoxModule: what `import "path" as name;` defines name as
+ *
+ * a module runs once in each interpreter which imports it(see Interpreter.importModule),
+ * in its own globals, its top-level variables, functions and classes are its
+ * properties. only the module's own code assigns them, from outside they are
+ * read only.
+ *
+ * - path(path): its file
+ * - name(string): its file's name
+ * - globals(environment.global): the module's globals
+ * - get(token name): the module's global name
+ */
+package com.craftinginterpreters.lox;
+
+import java.nio.file.Path;
+
+class LoxModule {
+  final Path path;
+  final String name;
+  final Environment.Global globals;
+
+  LoxModule(Path path, Environment.Global globals) {
+    this.path = path;
+    this.name = path.getFileName().toString();
+    this.globals = globals;
+  }
+
+  Object get(Token name) {
+    if (!globals.isDefined(name.lexeme)) {
+      throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+    return globals.get(name);
+  }
+
+  @Override
+  public String toString() {
+    return "<module " + name + ">";
+  }
+}
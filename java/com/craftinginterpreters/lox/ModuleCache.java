@@ -0,0 +1,67 @@
+/*
+ * ModuleCache: the compiled modules of the process, shared by every interpreter
+ *
+ * a module is scanned, parsed and resolved once into a CompiledScript, which
+ * any number of interpreters can run at the same time, so importing it again,
+ * from any script on any thread, is a look up. an entry is kept by the module's
+ * path with the sha-256 of its source(see ScriptCache.key): a file whose time or
+ * size changed(or which is read in another charset) is read again, and only
+ * compiled again if its source did change. it's read like a script(see Scanner.read),
+ * in the charset, without a byte order mark.
+ * two threads importing a new module at the same time could both compile it,
+ * either one is kept.
+ *
+ * - get(path path, charset charset): the compiled module, throws IOException if it can't be read
+ *   and CompileError if it has errors
+ */
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class ModuleCache {
+  private static final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+  private ModuleCache() {}
+
+  static CompiledScript get(Path path, Charset charset) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    Entry entry = entries.get(path);
+    if (entry != null && entry.modified.equals(attributes.lastModifiedTime())
+        && entry.size == attributes.size() && entry.charset.equals(charset)) {
+      return entry.script;
+    }
+
+    ByteBuffer source = Scanner.read(path, charset);
+    String hash = ScriptCache.key(source);
+    // touched but the same, it isn't compiled again
+    CompiledScript script = entry != null && entry.hash.equals(hash)
+        ? entry.script
+        : CompiledScript.compile(source);
+    entries.put(path, new Entry(attributes.lastModifiedTime(), attributes.size(), charset, hash, script));
+    return script;
+  }
+
+  private static final class Entry {
+    final FileTime modified;
+    final long size;
+    final Charset charset;
+    final String hash;
+    final CompiledScript script;
+
+    Entry(FileTime modified, long size, Charset charset, String hash, CompiledScript script) {
+      this.modified = modified;
+      this.size = size;
+      this.charset = charset;
+      this.hash = hash;
+      this.script = script;
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Output: where print goes
+ *
+ * lines are collected in a buffer and written to the sink in big chunks,
+ * instead of a locked and flushed System.out.println for every line.
+ *
+ * attributes:
+ * - sink(writer): stdout, a file or memory
+ * - capacity(int): write the buffer to the sink once it's this big
+ * - flushOnNewline(bool): flush every line, for the REPL
+ * - writer(thread): if there is, the sink is written by this thread
+ *
+ * methods:
+ * - stdout(capacity, flushOnNewline, async)/file(path, capacity, async)/memory()/writer(writer sink): new output
+ * - println(string line): add line to the buffer
+ * - flush(): write everything to the sink and flush it
+ * - close(): flush and stop the writer thread, close the file
+ * - contents(): everything printed to a memory output
+ * - take(): everything printed to a memory output since the last take
+ */
+package com.craftinginterpreters.lox;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+class Output {
+  static final int DEFAULT_CAPACITY = 8192;
+  private static final String NEWLINE = System.lineSeparator();
+  // tell the writer thread to stop
+  private static final Object STOP = new Object();
+
+  private final Writer sink;
+  private final boolean ownsSink;
+  private final int capacity;
+  private final boolean flushOnNewline;
+  private final StringBuilder buffer;
+
+  // only for async output: chunks(string), flush requests(latch) and STOP
+  private final BlockingQueue<Object> queue;
+  private final Thread writer;
+  private volatile IOException failure;
+
+  private Output(Writer sink, boolean ownsSink, int capacity, boolean flushOnNewline, boolean async) {
+    this.sink = sink;
+    this.ownsSink = ownsSink;
+    this.capacity = capacity;
+    this.flushOnNewline = flushOnNewline;
+    this.buffer = new StringBuilder(capacity + 128);
+
+    if (async) {
+      queue = new ArrayBlockingQueue<>(4);
+      writer = new Thread(this::write, "lox-output");
+      writer.setDaemon(true);
+      writer.start();
+    } else {
+      queue = null;
+      writer = null;
+    }
+  }
+
+  static Output stdout(int capacity, boolean flushOnNewline, boolean async) {
+    // write to the file descriptor, System.out would lock and flush again
+    Writer sink = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), Charset.defaultCharset());
+    return new Output(sink, false, capacity, flushOnNewline, async);
+  }
+
+  static Output file(Path path, int capacity, boolean async) throws IOException {
+    Writer sink = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+    return new Output(sink, true, capacity, false, async);
+  }
+
+  static Output memory() {
+    return new Output(new StringWriter(), true, DEFAULT_CAPACITY, false, false);
+  }
+
+  // the caller's writer, it's flushed but never closed
+  static Output writer(Writer sink) {
+    return new Output(sink, false, DEFAULT_CAPACITY, false, false);
+  }
+
+  void println(String line) {
+    buffer.append(line).append(NEWLINE);
+    if (flushOnNewline) {
+      flush();
+    } else if (buffer.length() >= capacity) {
+      drain();
+    }
+  }
+
+  void flush() {
+    drain();
+    if (queue == null) {
+      try {
+        sink.flush();
+      } catch (IOException error) {
+        throw new UncheckedIOException(error);
+      }
+      return;
+    }
+
+    // wait until the writer thread has written and flushed everything before
+    CountDownLatch flushed = new CountDownLatch(1);
+    put(flushed);
+    try {
+      flushed.await();
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+    checkFailure();
+  }
+
+  void close() {
+    flush();
+    if (writer != null) {
+      put(STOP);
+      try {
+        writer.join();
+      } catch (InterruptedException error) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (ownsSink) {
+      try {
+        sink.close();
+      } catch (IOException error) {
+        throw new UncheckedIOException(error);
+      }
+    }
+  }
+
+  String contents() {
+    flush();
+    return sink.toString();
+  }
+
+  String take() {
+    flush();
+    StringBuffer buffer = ((StringWriter)sink).getBuffer();
+    String contents = buffer.toString();
+    buffer.setLength(0);
+    return contents;
+  }
+
+  // hand the buffer to the sink(or the writer thread)
+  private void drain() {
+    if (buffer.length() == 0) return;
+    String chunk = buffer.toString();
+    buffer.setLength(0);
+
+    if (queue != null) {
+      put(chunk);
+      return;
+    }
+    try {
+      sink.write(chunk);
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
+    }
+  }
+
+  private void put(Object message) {
+    checkFailure();
+    try {
+      queue.put(message);
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void checkFailure() {
+    if (failure != null) throw new UncheckedIOException(failure);
+  }
+
+  // the writer thread's loop
+  private void write() {
+    for (;;) {
+      Object message;
+      try {
+        message = queue.take();
+      } catch (InterruptedException error) {
+        return;
+      }
+      if (message == STOP) return;
+
+      try {
+        if (message instanceof CountDownLatch) {
+          sink.flush();
+        } else if (failure == null) {
+          sink.write((String)message);
+        }
+      } catch (IOException error) {
+        failure = error;
+      }
+      if (message instanceof CountDownLatch) ((CountDownLatch)message).countDown();
+    }
+  }
+}
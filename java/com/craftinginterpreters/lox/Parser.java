@@ -3,7 +3,8 @@
  * 1. classDecleration
  * 2. function
  * 3. varDecleration
- * 4. statement:
+ * 4. importDeclaration
+ * 5. statement:
  *  - forStatement()
  *  - ifStatement()
  *  - printStatement()
@@ -24,12 +25,46 @@ class Parser {
   //> parse-error class
   private static class ParseError extends RuntimeException {}
 
+  // where the batches of tokens come from(see Scanner.scanBatch), the last one ends with eof
+  interface Batches {
+    TokenBuffer next() throws InterruptedException;
+  }
+
   //< parse-error
-  private final List<Token> tokens;
+  private TokenBuffer tokens;
   private int current = 0;
+  // tokens in batches(see Scanner), null when all tokens are in one buffer
+  private final Batches batches;
+  // the last token of the previous batch, for previous()
+  private Token last;
+  // only check the syntax of top-level function and method bodies(see LazyBody)
+  private final boolean lazy;
+  // how many blocks the parser is in
+  private int depth = 0;
+  // where errors go, null: straight to Lox.error
+  private final Diagnostics diagnostics;
+
+  Parser(TokenBuffer tokens) {
+    this(tokens, false);
+  }
 
-  Parser(List<Token> tokens) {
+  Parser(TokenBuffer tokens, boolean lazy) {
+    this(tokens, lazy, null);
+  }
+
+  Parser(TokenBuffer tokens, boolean lazy, Diagnostics diagnostics) {
     this.tokens = tokens;
+    this.batches = null;
+    this.lazy = lazy;
+    this.diagnostics = diagnostics;
+  }
+
+  // parse while the tokens are still being scanned
+  Parser(Batches batches) throws InterruptedException {
+    this.batches = batches;
+    this.tokens = batches.next();
+    this.lazy = false;
+    this.diagnostics = null;
   }
 
   List<Stmt> parse() {
@@ -41,12 +76,28 @@ class Parser {
     return statements;
   }
 
+  // one top-level declaration at a time
+  boolean hasNext() {
+    return !isAtEnd();
+  }
+
+  // the next top-level declaration, null if it has an error
+  Stmt next() {
+    return declaration();
+  }
+
+  // the index of the next token, when all tokens are in one buffer(see Document)
+  int position() {
+    return current;
+  }
+
   /*
    * Stmt:
    * 1. Declaration match: the main entry of parse
    * - class  ==> classDeclaration
    * - fun    ==> function
    * - vat    ==> varDeclaration
+   * - import ==> importDeclaration
    * - others ==> statement
    */
   private Stmt declaration() {
@@ -54,6 +105,7 @@ class Parser {
       if (match(CLASS)) return classDeclaration();
       if (match(FUN)) return function("function");
       if (match(VAR)) return varDeclaration();
+      if (match(IMPORT)) return importDeclaration();
       return statement();
     } 
     catch (ParseError error) {
@@ -97,6 +149,18 @@ class Parser {
     return new Stmt.Var(name, initializer);
   }
 
+  // 2.5 importDeclaration: import "path" as name;
+  // "as" isn't a keyword, a script can still have a variable named as
+  private Stmt importDeclaration() {
+    Token keyword = previous();
+    Token path = consume(STRING, "Expect module path after 'import'.");
+    Token as = consume(IDENTIFIER, "Expect 'as' after module path.");
+    if (!as.lexeme.equals("as")) throw error(as, "Expect 'as' after module path.");
+    Token name = consume(IDENTIFIER, "Expect module name after 'as'.");
+    consume(SEMICOLON, "Expect ';' after import.");
+    return new Stmt.Import(keyword, path, name);
+  }
+
   // 2.3 Functions
   private Stmt.Function function(String kind) {
     Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
@@ -116,6 +180,10 @@ class Parser {
     consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
     consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+    // a nested function's body is parsed with its outer function's
+    if (lazy && depth == 0) {
+      return new Stmt.Function(name, parameters, skipBody(name));
+    }
     List<Stmt> body = block();
     return new Stmt.Function(name, parameters, body);
   }
@@ -239,151 +307,341 @@ class Parser {
   private List<Stmt> block() {
     List<Stmt> statements = new ArrayList<>();
 
-    while (!check(RIGHT_BRACE) && !isAtEnd()) {
-      statements.add(declaration());
+    depth++;
+    try {
+      while (!check(RIGHT_BRACE) && !isAtEnd()) {
+        statements.add(declaration());
+      }
+    } finally {
+      depth--;
     }
 
     consume(RIGHT_BRACE, "Expect '}' after block.");
     return statements;
   }
 
-  // Expr
-
-  // expression ==> assignment
-  private Expr expression() { return assignment(); }
-
-  // assignment: 
-  // primary ==> call ==> unary ==> factor ==> term ==> conpration ==> equality ==> and ==> or
-  private Expr assignment() {
-    // 1.get "or" first
-    Expr expr = or();
-
-    // 2.with assign
-    if (match(EQUAL)) {
-      Token equals = previous();
-      Expr value = assignment();
-
-      // 2.1.expr is variable
-      if (expr instanceof Expr.Variable) {
-        Token name = ((Expr.Variable)expr).name;
-        return new Expr.Assign(name, value);
-      }
-
-      // 2.2.expr is get
-      else if (expr instanceof Expr.Get) {
-        Expr.Get get = (Expr.Get)expr;
-        return new Expr.Set(get.object, get.name, value);
-      }
+  // a lazy body from start, the token after its '{', null if it has errors
+  List<Stmt> body(int start) {
+    current = start;
+    try {
+      return block();
+    } catch (ParseError error) {
+      return null;
+    }
+  }
 
-      error(equals, "Invalid assignment target.");
+  // check a body's syntax without making its statements, it's parsed on its first call.
+  // a body with errors is parsed now, so they are reported as without lazy
+  private List<Stmt> skipBody(Token name) {
+    int start = current;
+    try {
+      skipBlock();
+      return new LazyBody(tokens, start, name);
+    } catch (ParseError error) {
+      current = start;
+      return block();
     }
-    return expr;
   }
 
-  // return expr or logical
-  private Expr or() {
-    // 1.get "and" first
-    Expr expr = and();
+  /*
+   * the preparser: the grammar above, but it only moves past the tokens and
+   * throws SKIP_ERROR at the first error, which it doesn't report. it can be
+   * stricter than the parser(e.g. an import in a body), that body is just parsed.
+   */
+  private static final ParseError SKIP_ERROR = new ParseError();
 
-    // with or
-    while (match(OR)) {
-      Token operator = previous();
-      Expr right = and(); // the second "and"
-      expr = new Expr.Logical(expr, operator, right);
+  // declarations up to the '}' which ends their block
+  private void skipBlock() {
+    while (!skip(RIGHT_BRACE)) {
+      if (isAtEnd()) throw SKIP_ERROR;
+      skipDeclaration();
     }
-    return expr;
   }
 
-  private Expr and() {
-    Expr expr = equality();
-
-    while (match(AND)) {
-      Token operator = previous();
-      Expr right = equality();
-      expr = new Expr.Logical(expr, operator, right);
+  private void skipDeclaration() {
+    if (skip(CLASS)) {
+      expect(IDENTIFIER);
+      if (skip(LESS)) expect(IDENTIFIER);
+      expect(LEFT_BRACE);
+      while (!skip(RIGHT_BRACE)) skipFunction();
+    } else if (skip(FUN)) {
+      skipFunction();
+    } else if (skip(VAR)) {
+      skipVar();
+    } else {
+      skipStatement();
     }
+  }
 
-    return expr;
+  private void skipFunction() {
+    expect(IDENTIFIER);
+    expect(LEFT_PAREN);
+    if (!skip(RIGHT_PAREN)) {
+      int parameters = 0;
+      do {
+        if (++parameters > 255) throw SKIP_ERROR;
+        expect(IDENTIFIER);
+      } while (skip(COMMA));
+      expect(RIGHT_PAREN);
+    }
+    expect(LEFT_BRACE);
+    skipBlock();
   }
 
-  private Expr equality() {
-    Expr expr = comparison();
+  private void skipVar() {
+    expect(IDENTIFIER);
+    if (skip(EQUAL)) skipExpression(ASSIGNMENT);
+    expect(SEMICOLON);
+  }
 
-    while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-      Token operator = previous();
-      Expr right = comparison();
-      expr = new Expr.Binary(expr, operator, right);
+  private void skipStatement() {
+    if (skip(FOR)) {
+      expect(LEFT_PAREN);
+      if (skip(VAR)) {
+        skipVar();
+      } else if (!skip(SEMICOLON)) {
+        skipExpressionThen(SEMICOLON);
+      }
+      if (!skip(SEMICOLON)) skipExpressionThen(SEMICOLON);
+      if (!skip(RIGHT_PAREN)) skipExpressionThen(RIGHT_PAREN);
+      skipStatement();
+    } else if (skip(IF)) {
+      expect(LEFT_PAREN);
+      skipExpressionThen(RIGHT_PAREN);
+      skipStatement();
+      if (skip(ELSE)) skipStatement();
+    } else if (skip(WHILE)) {
+      expect(LEFT_PAREN);
+      skipExpressionThen(RIGHT_PAREN);
+      skipStatement();
+    } else if (skip(RETURN)) {
+      if (!skip(SEMICOLON)) skipExpressionThen(SEMICOLON);
+    } else if (skip(LEFT_BRACE)) {
+      skipBlock();
+    } else {
+      // print and an expression statement are both an expression and ';'
+      skip(PRINT);
+      skipExpressionThen(SEMICOLON);
+    }
+  }
+
+  private void skipExpressionThen(TokenType type) {
+    skipExpression(ASSIGNMENT);
+    expect(type);
+  }
+
+  // true if it's a variable or a property, which can be assigned
+  private boolean skipExpression(int precedence) {
+    boolean assignable = skipPrefix();
+    while (precedence <= INFIX_PRECEDENCE[tokens.type(current).ordinal()]) {
+      TokenType type = tokens.type(current++);
+      switch (type) {
+        case EQUAL:
+          if (!assignable) throw SKIP_ERROR;
+          skipExpression(ASSIGNMENT);
+          assignable = false;
+          break;
+        case LEFT_PAREN:
+          skipArguments();
+          assignable = false;
+          break;
+        case DOT:
+          expect(IDENTIFIER);
+          assignable = true;
+          break;
+        default:
+          skipExpression(INFIX_PRECEDENCE[type.ordinal()] + 1);
+          assignable = false;
+      }
     }
+    return assignable;
+  }
 
-    return expr;
+  private boolean skipPrefix() {
+    switch (tokens.type(current++)) {
+      case FALSE: case TRUE: case NIL: case NUMBER: case STRING: case THIS:
+        return false;
+      case IDENTIFIER:
+        return true;
+      case SUPER:
+        expect(DOT);
+        expect(IDENTIFIER);
+        return false;
+      case LEFT_PAREN:
+        skipExpressionThen(RIGHT_PAREN);
+        return false;
+      case BANG:
+      case MINUS:
+        skipExpression(UNARY);
+        return false;
+      default:
+        throw SKIP_ERROR;
+    }
   }
 
-  private Expr comparison() {
-    Expr expr = term();
+  private void skipArguments() {
+    if (skip(RIGHT_PAREN)) return;
+    int arguments = 0;
+    do {
+      if (++arguments > 255) throw SKIP_ERROR;
+      skipExpression(ASSIGNMENT);
+    } while (skip(COMMA));
+    expect(RIGHT_PAREN);
+  }
 
-    while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-      Token operator = previous();
-      Expr right = term();
-      expr = new Expr.Binary(expr, operator, right);
-    }
+  // the preparser has all tokens in one buffer, it moves without advance()
+  private boolean skip(TokenType type) {
+    if (tokens.type(current) != type) return false;
+    current++;
+    return true;
+  }
 
-    return expr;
+  private void expect(TokenType type) {
+    if (!skip(type)) throw SKIP_ERROR;
   }
 
-  private Expr term() {
-    Expr expr = factor();
+  // Expr
 
-    while (match(MINUS, PLUS)) {
-      Token operator = previous();
-      Expr right = factor();
-      expr = new Expr.Binary(expr, operator, right);
+  /*
+   * expressions are parsed by precedence climbing(pratt): a prefix handler
+   * for the first token, then infix handlers while the next operator binds
+   * at least as tight as the current precedence.
+   * from loose to tight:
+   *   assignment(=, right associative) < or < and < equality < comparison
+   *   < term < factor < unary < call(".", "(")
+   */
+  private static final int NONE = 0;
+  private static final int ASSIGNMENT = 1;
+  private static final int OR_PRECEDENCE = 2;
+  private static final int AND_PRECEDENCE = 3;
+  private static final int EQUALITY = 4;
+  private static final int COMPARISON = 5;
+  private static final int TERM = 6;
+  private static final int FACTOR = 7;
+  private static final int UNARY = 8;
+  private static final int CALL = 9;
+
+  // token type's ordinal => its precedence as an infix operator, NONE if it isn't one
+  private static final byte[] INFIX_PRECEDENCE = new byte[TokenType.values().length];
+  static {
+    INFIX_PRECEDENCE[EQUAL.ordinal()] = ASSIGNMENT;
+    INFIX_PRECEDENCE[OR.ordinal()] = OR_PRECEDENCE;
+    INFIX_PRECEDENCE[AND.ordinal()] = AND_PRECEDENCE;
+    INFIX_PRECEDENCE[BANG_EQUAL.ordinal()] = EQUALITY;
+    INFIX_PRECEDENCE[EQUAL_EQUAL.ordinal()] = EQUALITY;
+    INFIX_PRECEDENCE[GREATER.ordinal()] = COMPARISON;
+    INFIX_PRECEDENCE[GREATER_EQUAL.ordinal()] = COMPARISON;
+    INFIX_PRECEDENCE[LESS.ordinal()] = COMPARISON;
+    INFIX_PRECEDENCE[LESS_EQUAL.ordinal()] = COMPARISON;
+    INFIX_PRECEDENCE[MINUS.ordinal()] = TERM;
+    INFIX_PRECEDENCE[PLUS.ordinal()] = TERM;
+    INFIX_PRECEDENCE[SLASH.ordinal()] = FACTOR;
+    INFIX_PRECEDENCE[STAR.ordinal()] = FACTOR;
+    INFIX_PRECEDENCE[LEFT_PAREN.ordinal()] = CALL;
+    INFIX_PRECEDENCE[DOT.ordinal()] = CALL;
+  }
+
+  private Expr expression() { return expression(ASSIGNMENT); }
+
+  // an expression whose operators bind at least as tight as precedence
+  private Expr expression(int precedence) {
+    Expr expr = prefix();
+    while (precedence <= INFIX_PRECEDENCE[tokens.type(current).ordinal()]) {
+      expr = infix(expr);
     }
-
     return expr;
   }
 
-  private Expr factor() {
-    Expr expr = unary();
+  // literal, super, this, identifier, grouping, unary
+  private Expr prefix() {
+    switch (tokens.type(current)) {
+      case FALSE: advance(); return new Expr.Literal(false);
+      case TRUE: advance(); return new Expr.Literal(true);
+      case NIL: advance(); return new Expr.Literal(null);
+      case NUMBER:
+      case STRING:
+        advance();
+        return new Expr.Literal(previousLiteral());
 
-    while (match(SLASH, STAR)) {
-      Token operator = previous();
-      Expr right = unary();
-      expr = new Expr.Binary(expr, operator, right);
-    }
+      case SUPER: {
+        advance();
+        Token keyword = previous();
+        consume(DOT, "Expect '.' after 'super'.");
+        Token method = consume(IDENTIFIER, "Expect superclass method name.");
+        return new Expr.Super(keyword, method);
+      }
+      case THIS:
+        advance();
+        return new Expr.This(previous());
+      case IDENTIFIER:
+        advance();
+        return new Expr.Variable(previous());
 
-    return expr;
-  }
+      case LEFT_PAREN: {
+        advance();
+        Expr expr = expression();
+        consume(RIGHT_PAREN, "Expect ')' after expression.");
+        return new Expr.Grouping(expr);
+      }
 
-  // unary: with "!" or "-"
-  private Expr unary() {
-    if (match(BANG, MINUS)) {
-      Token operator = previous();
-      Expr right = unary();
-      return new Expr.Unary(operator, right);
+      // unary: with "!" or "-", the operand takes calls but no binary operator
+      case BANG:
+      case MINUS: {
+        advance();
+        Token operator = previous();
+        Expr right = expression(UNARY);
+        return new Expr.Unary(operator, right);
+      }
+      default:
+        throw error(peek(), "Expect expression.");
     }
-    return call();
   }
 
+  // the operator after left: binary, logical, assignment, call or get
+  private Expr infix(Expr left) {
+    TokenType type = tokens.type(current);
+    int precedence = INFIX_PRECEDENCE[type.ordinal()];
+    advance();
+    switch (type) {
+      case EQUAL: {
+        Token equals = previous();
+        // right associative: a = b = c is a = (b = c)
+        Expr value = expression(ASSIGNMENT);
+
+        // 1.left is variable
+        if (left instanceof Expr.Variable) {
+          Token name = ((Expr.Variable)left).name;
+          return new Expr.Assign(name, value);
+        }
 
-  // return call or get
-  private Expr call() {
-    Expr expr = primary();
+        // 2.left is get
+        if (left instanceof Expr.Get) {
+          Expr.Get get = (Expr.Get)left;
+          return new Expr.Set(get.object, get.name, value);
+        }
 
-    while (true) {
-      // 1. (
-      if (match(LEFT_PAREN)) {
-        expr = finishCall(expr);
-      } 
-      // 2. .
-      else if (match(DOT)) {
+        error(equals, "Invalid assignment target.");
+        return left;
+      }
+      case OR:
+      case AND: {
+        Token operator = previous();
+        Expr right = expression(precedence + 1);
+        return new Expr.Logical(left, operator, right);
+      }
+      case LEFT_PAREN:
+        return finishCall(left);
+      case DOT: {
         Token name = consume(IDENTIFIER, "Expect property name after '.'.");
-        expr = new Expr.Get(expr, name);
+        return new Expr.Get(left, name);
       }
-      else {
-        break;
+      default: {
+        // left associative: the right side binds tighter
+        Token operator = previous();
+        Expr right = expression(precedence + 1);
+        return new Expr.Binary(left, operator, right);
       }
     }
-    return expr;
   }
 
   private Expr finishCall(Expr callee) {
@@ -400,86 +658,77 @@ class Parser {
     return new Expr.Call(callee, paren, arguments);
   }
 
-  // false, true, nil, super, this, identifier, (
-  private Expr primary() {
-    // 1.final
-    if (match(FALSE)) return new Expr.Literal(false);
-    if (match(TRUE)) return new Expr.Literal(true);
-    if (match(NIL)) return new Expr.Literal(null);
-
-    if (match(NUMBER, STRING)) {
-      return new Expr.Literal(previous().literal);
-    }
-
-    // 2.super
-    if (match(SUPER)) {
-      Token keyword = previous();
-      consume(DOT, "Expect '.' after 'super'.");
-      Token method = consume(IDENTIFIER, "Expect superclass method name.");
-      return new Expr.Super(keyword, method);
-    }
-
-    // 3.this
-    if (match(THIS)) return new Expr.This(previous());
-
-    // 4.identifier
-    if (match(IDENTIFIER)) {
-      return new Expr.Variable(previous());
-    }
-
-    // 5.(
-    if (match(LEFT_PAREN)) {
-      Expr expr = expression();
-      consume(RIGHT_PAREN, "Expect ')' after expression.");
-      return new Expr.Grouping(expr);
-    }
-    throw error(peek(), "Expect expression.");
-  }
-
-
-
-
   // help function
 
-  private boolean match(TokenType... types) {
-    for (TokenType type : types) {
-      if (check(type)) {
-        advance();
-        return true;
-      }
-    }
-    return false;
+  // one type at a time, no array is made for the types
+  private boolean match(TokenType type) {
+    if (!check(type)) return false;
+    advance();
+    return true;
   }
 
   private Token consume(TokenType type, String message) {
-    if (check(type)) return advance();
+    if (check(type)) {
+      advance();
+      return previous();
+    }
     throw error(peek(), message);
   }
 
+  // checks only look at the type, no Token is made for them
   private boolean check(TokenType type) {
     if (isAtEnd()) return false;
-    return peek().type == type;
+    return tokens.type(current) == type;
   }
 
-  private Token advance() {
-    if (!isAtEnd()) current++;
-    return previous();
+  private void advance() {
+    if (isAtEnd()) return;
+    current++;
+    // eof is always in the last batch, so this one is used up
+    if (current == tokens.size()) nextBatch();
+  }
+
+  private void nextBatch() {
+    last = previous();
+    try {
+      tokens = batches.next();
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for tokens.", error);
+    }
+    current = 0;
   }
 
   private boolean isAtEnd() {
-    return peek().type == EOF;
+    return tokens.type(current) == EOF;
   }
 
+  // make the current token, for errors
   private Token peek() {
-    return tokens.get(current);
+    return tokens.token(current);
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    if (current == 0) return last;
+    return tokens.token(current - 1);
+  }
+
+  private TokenType previousType() {
+    if (current == 0) return last.type;
+    return tokens.type(current - 1);
+  }
+
+  private Object previousLiteral() {
+    if (current == 0) return last.literal;
+    return tokens.literal(current - 1);
   }
 
   private ParseError error(Token token, String message) {
-    Lox.error(token, message);
+    if (diagnostics != null) {
+      diagnostics.error(token, message);
+    } else {
+      Lox.error(token, message);
+    }
     return new ParseError();
   }
 
@@ -487,12 +736,13 @@ class Parser {
     advance();
 
     while (!isAtEnd()) {
-      if (previous().type == SEMICOLON) return;
+      if (previousType() == SEMICOLON) return;
 
-      switch (peek().type) {
+      switch (tokens.type(current)) {
         case CLASS:
         case FUN:
         case VAR:
+        case IMPORT:
         case FOR:
         case IF:
         case WHILE:
@@ -0,0 +1,105 @@
+/*
+ * Pipeline: scan, parse and resolve at the same time on their own threads
+ *
+ *   scanner --(batches of tokens)--> parser --(top-level declarations)--> resolver
+ *
+ * the queues are bounded, so a fast stage waits for a slow one instead of
+ * running ahead. top-level declarations are resolved one by one, the global
+ * scope isn't tracked by the resolver, so nothing is lost by that.
+ *
+ * - run(): return the resolved statements when all stages are done
+ */
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+class Pipeline {
+  private static final int BATCH_SIZE = 4096;
+  // the end of the declarations, and a declaration with parse errors
+  private static final Stmt END = new Stmt.Block(null);
+  private static final Stmt ERROR = new Stmt.Block(null);
+
+  private final Scanner scanner;
+  private final BlockingQueue<TokenBuffer> batches = new ArrayBlockingQueue<>(16);
+  private final BlockingQueue<Stmt> declarations = new ArrayBlockingQueue<>(256);
+  private final List<Stmt> statements = new ArrayList<>();
+  private final List<Thread> stages = new ArrayList<>();
+  // the first thing thrown by a stage, it's thrown again by run()
+  private volatile Throwable failure;
+
+  Pipeline(Scanner scanner) {
+    this.scanner = scanner;
+  }
+
+  List<Stmt> run() {
+    start("lox-scanner", this::scan);
+    start("lox-parser", this::parse);
+    start("lox-resolver", this::resolve);
+    for (Thread stage : stages) stage.start();
+
+    try {
+      for (Thread stage : stages) stage.join();
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while compiling.", error);
+    }
+
+    if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+    if (failure instanceof Error) throw (Error)failure;
+    if (failure != null) throw new IllegalStateException(failure);
+    return statements;
+  }
+
+  private void start(String name, Runnable stage) {
+    stages.add(new Thread(() -> {
+      try {
+        stage.run();
+      } catch (Throwable error) {
+        // the other stages could wait for this one forever, stop them
+        if (failure == null) failure = error;
+        for (Thread other : stages) other.interrupt();
+      }
+    }, name));
+  }
+
+  private void scan() {
+    try {
+      scanner.scanTokens(batches, BATCH_SIZE);
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void parse() {
+    try {
+      try {
+        Parser parser = new Parser(batches::take);
+        while (parser.hasNext()) {
+          Stmt declaration = parser.next();
+          declarations.put(declaration == null ? ERROR : declaration);
+        }
+      } finally {
+        // the resolver must stop even if parsing failed
+        declarations.put(END);
+      }
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void resolve() {
+    Resolver resolver = new Resolver();
+    try {
+      for (Stmt declaration = declarations.take(); declaration != END; declaration = declarations.take()) {
+        if (declaration == ERROR) continue;
+        resolver.resolve(declaration);
+        statements.add(declaration);
+      }
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
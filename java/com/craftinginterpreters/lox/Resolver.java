@@ -1,20 +1,28 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-  private final Interpreter interpreter;
-  // scopes: true means defined, false means declared but not initialized
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  // top-level statements resolved by one task of resolveParallel
+  private static final int CHUNK = 64;
 
-  private FunctionType currentFunction = FunctionType.NONE;
+  // where errors go, null: straight to Lox.error
+  private final Diagnostics diagnostics;
+  // local scopes, inner ones last, the scope objects are reused
+  private Scope[] scopes = new Scope[16];
+  private int depth = 0;
+  // name => its innermost local binding, which links to the ones it shadows
+  private final Map<String, Binding> innermost = new HashMap<>();
 
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
-  }
+  private FunctionType currentFunction = FunctionType.NONE;
+  // the function being resolved, to mark its frame escapes
+  private Stmt.Function currentDeclaration = null;
 
   private enum FunctionType {
     NONE,         // none
@@ -31,6 +39,74 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   private ClassType currentClass = ClassType.NONE;
 
+  // declared variable: defined false means declared but not initialized
+  private static class Binding {
+    String name;
+    int scope;
+    int slot;
+    boolean defined;
+    // the same name's binding in an outer scope(or earlier in this one)
+    Binding shadowed;
+  }
+
+  // the bindings declared in a scope, in slot order
+  private static class Scope {
+    Binding[] bindings = new Binding[8];
+    int size = 0;
+  }
+
+  Resolver() {
+    this(null);
+  }
+
+  Resolver(Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+  }
+
+  // resolve the top-level statements on the fork/join pool, a chunk of them a task.
+  // globals aren't tracked, so the chunks don't depend on each other, and each
+  // statement's resolution is written into its own nodes.
+  // errors are reported after, in source order.
+  static void resolveParallel(List<Stmt> statements) {
+    // no chunks, an empty(or comments only) script
+    if (statements.isEmpty()) return;
+    Diagnostics[] diagnostics = new Diagnostics[(statements.size() + CHUNK - 1) / CHUNK];
+    ForkJoinPool.commonPool().invoke(new Chunks(statements, diagnostics, 0, diagnostics.length));
+    for (Diagnostics chunk : diagnostics) chunk.report();
+  }
+
+  // resolve chunks [from, to), split in halves until there is one
+  private static class Chunks extends RecursiveAction {
+    // a fork/join task is serializable, these never are serialized
+    private static final long serialVersionUID = 1L;
+
+    private final List<Stmt> statements;
+    private final Diagnostics[] diagnostics;
+    private final int from;
+    private final int to;
+
+    Chunks(List<Stmt> statements, Diagnostics[] diagnostics, int from, int to) {
+      this.statements = statements;
+      this.diagnostics = diagnostics;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > 1) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new Chunks(statements, diagnostics, from, middle),
+                  new Chunks(statements, diagnostics, middle, to));
+        return;
+      }
+      Diagnostics chunk = new Diagnostics();
+      int end = Math.min(statements.size(), (from + 1) * CHUNK);
+      new Resolver(chunk).resolve(statements.subList(from * CHUNK, end));
+      diagnostics[from] = chunk;
+    }
+  }
+
   void resolve(List<Stmt> statements) {
     for (Stmt statement : statements) {
       resolve(statement);
@@ -38,7 +114,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   }
 
   // resolve stmt
-  private void resolve(Stmt stmt) {
+  void resolve(Stmt stmt) {
     stmt.accept(this);
   }
 
@@ -53,6 +129,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitBlockStmt(Stmt.Block stmt) {
     beginScope();
     resolve(stmt.statements);
+    stmt.locals = scopes[depth - 1].size;
     endScope();
     return null;
   }
@@ -62,11 +139,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // 1.update currentClass and define its name
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
-    declare(stmt.name);
+    // methods capture the environment around the class
+    escape();
+    stmt.slot = declare(stmt.name);
     define(stmt.name);
     // super class can't be itself
     if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-      Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
+      error(stmt.superclass.name, "A class can't inherit from itself.");
     }
     // 2.resolve super class and new its scope if there is
     if (stmt.superclass != null) {
@@ -75,11 +154,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
     if (stmt.superclass != null) {
       beginScope();
-      scopes.peek().put("super", true);
+      declareThisOrSuper("super");
     }
     // 3.begin a new scope and define the class's methods
     beginScope();
-    scopes.peek().put("this", true);
+    declareThisOrSuper("this");
     for (Stmt.Function method : stmt.methods) {
       FunctionType declaration = FunctionType.METHOD;
       if (method.name.lexeme.equals("init")) {
@@ -103,8 +182,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
     // define function's name in current scope
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name);
     define(stmt.name);
+    // the function captures the environment it's declared in
+    escape();
     resolveFunction(stmt, FunctionType.FUNCTION);
     return null;
 }
@@ -117,6 +198,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  // a module is a global of the script(or module) which imports it, and it's loaded
+  // once, by the top-level code
+  @Override
+  public Void visitImportStmt(Stmt.Import stmt) {
+    if (depth != 0) {
+      error(stmt.keyword, "Can only import at top level.");
+    }
+    stmt.slot = -1;
+    return null;
+  }
+
   @Override
   public Void visitPrintStmt(Stmt.Print stmt) {
     resolve(stmt.expression);
@@ -126,11 +218,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
     if (currentFunction == FunctionType.NONE) {
-      Lox.error(stmt.keyword, "Can't return from top-level code.");
+      error(stmt.keyword, "Can't return from top-level code.");
     }
     if (stmt.value != null) {
       if (currentFunction == FunctionType.INITIALIZER) {
-        Lox.error(stmt.keyword, "Can't return a value from an initializer.");
+        error(stmt.keyword, "Can't return a value from an initializer.");
       }
       resolve(stmt.value);
     }
@@ -139,7 +231,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name);
     if (stmt.initializer != null) {
       resolve(stmt.initializer);
     }
@@ -216,9 +308,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitSuperExpr(Expr.Super expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword, "Can't use 'super' outside of a class.");
+      error(expr.keyword, "Can't use 'super' outside of a class.");
     } else if (currentClass != ClassType.SUBCLASS) {
-      Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+      error(expr.keyword, "Can't use 'super' in a class with no superclass.");
     }
     resolveLocal(expr, expr.keyword);
     return null;
@@ -228,7 +320,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitThisExpr(Expr.This expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
+      error(expr.keyword, "Can't use 'this' outside of a class.");
       return null;
     }
     resolveLocal(expr, expr.keyword);
@@ -244,25 +336,74 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   // store variable's expr
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
-    if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-      Lox.error(expr.name, "Can't read local variable in its own initializer.");
+    Binding binding = innermost.get(expr.name.lexeme);
+    if (binding != null && binding.scope == depth - 1 && !binding.defined) {
+      error(expr.name, "Can't read local variable in its own initializer.");
     }
-    resolveLocal(expr, expr.name);
+    resolveLocal(expr, binding);
     return null;
   }
 
   // resolve function with no define its name(type means it is a function or method)
   private void resolveFunction(Stmt.Function function, FunctionType type) {
     FunctionType enclosingFunction = currentFunction;
+    Stmt.Function enclosingDeclaration = currentDeclaration;
     currentFunction = type;
+    currentDeclaration = function;
+    // nothing captures its frame until a nested function or class shows up
+    function.escapes = false;
+    // a lazy body is resolved when it's parsed, in the scopes it has now
+    if (function.body instanceof LazyBody && !((LazyBody)function.body).isParsed()) {
+      deferFunction(function, type);
+      currentFunction = enclosingFunction;
+      currentDeclaration = enclosingDeclaration;
+      return;
+    }
     beginScope();
     for (Token param : function.params) {
       declare(param);
       define(param);
     }
     resolve(function.body);
+    function.locals = scopes[depth - 1].size;
     endScope();
     currentFunction = enclosingFunction;
+    currentDeclaration = enclosingDeclaration;
+  }
+
+  // only top-level functions and methods are lazy, so the scopes are
+  // at most the class's "super" and "this", which never change
+  private void deferFunction(Stmt.Function function, FunctionType type) {
+    // copy the names, the scope objects are reused
+    List<List<String>> enclosing = new ArrayList<>();
+    for (int i = 0; i < depth; i++) {
+      List<String> names = new ArrayList<>();
+      for (int slot = 0; slot < scopes[i].size; slot++) names.add(scopes[i].bindings[slot].name);
+      enclosing.add(names);
+    }
+    ClassType enclosingClass = currentClass;
+    ((LazyBody)function.body).resolveWith(() -> {
+      Resolver resolver = new Resolver();
+      for (List<String> names : enclosing) {
+        resolver.beginScope();
+        for (String name : names) resolver.bind(name).defined = true;
+      }
+      resolver.currentClass = enclosingClass;
+      resolver.resolveFunction(function, type);
+    });
+  }
+
+  private void error(Token token, String message) {
+    if (diagnostics != null) {
+      diagnostics.error(token, message);
+    } else {
+      Lox.error(token, message);
+    }
+  }
+
+  // the current function's frame can be captured, so it can't be recycled
+  private void escape() {
+    if (currentDeclaration != null) currentDeclaration.escapes = true;
   }
 
 
@@ -270,12 +411,41 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   // push a new scope
   private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+    if (depth == scopes.length) scopes = Arrays.copyOf(scopes, depth * 2);
+    if (scopes[depth] == null) scopes[depth] = new Scope();
+    depth++;
   }
 
-  // pop the top scope
+  // pop the top scope, its names go back to the bindings they shadowed
   private void endScope() {
-    scopes.pop();
+    Scope scope = scopes[--depth];
+    for (int i = scope.size - 1; i >= 0; i--) {
+      Binding binding = scope.bindings[i];
+      if (binding.shadowed == null) {
+        innermost.remove(binding.name);
+      } else {
+        innermost.put(binding.name, binding.shadowed);
+      }
+      binding.name = null;
+      binding.shadowed = null;
+    }
+    scope.size = 0;
+  }
+
+  // add name to the top scope in the next slot
+  private Binding bind(String name) {
+    Scope scope = scopes[depth - 1];
+    if (scope.size == scope.bindings.length) {
+      scope.bindings = Arrays.copyOf(scope.bindings, scope.size * 2);
+    }
+    Binding binding = scope.bindings[scope.size];
+    if (binding == null) binding = scope.bindings[scope.size] = new Binding();
+    binding.name = name;
+    binding.scope = depth - 1;
+    binding.slot = scope.size++;
+    binding.defined = false;
+    binding.shadowed = innermost.put(name, binding);
+    return binding;
   }
 
   /*
@@ -291,32 +461,40 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
    */
 
   // declare name in current scope, mark this variable is exist but "not ready yet"
-  private void declare(Token name) {
-    if (scopes.isEmpty()) return;
+  // return its slot in the scope, -1 means it's global
+  private int declare(Token name) {
+    if (depth == 0) return -1;
 
-    Map<String, Boolean> scope = scopes.peek();
     // duplicate-variable
-    if (scope.containsKey(name.lexeme)) {
-      Lox.error(name, "Already a variable with this name in this scope.");
+    Binding existing = innermost.get(name.lexeme);
+    if (existing != null && existing.scope == depth - 1) {
+      error(name, "Already a variable with this name in this scope.");
     }
-    scope.put(name.lexeme, false);
+    return bind(name.lexeme).slot;
   }
 
   // define name in current scope, this time it's truly exist
   private void define(Token name) {
-    if (scopes.isEmpty()) return;
-    scopes.peek().put(name.lexeme, true);
+    if (depth == 0) return;
+    innermost.get(name.lexeme).defined = true;
+  }
+
+  // "this" and "super" are the only variable in their own scope: slot 0
+  private void declareThisOrSuper(String name) {
+    bind(name).defined = true;
   }
 
-  // resolve the epxr's depth to locals
+  // resolve the epxr's depth, not found means it's global
   // used at visitAssignExpr, visitSuperExpr, visitThisExpr, visitVariableExpr
   private void resolveLocal(Expr expr, Token name) {
-    for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        // set the expr's depth in locals in interpreter
-        interpreter.resolve(expr, scopes.size() - 1 - i);
-        return;
-      }
-    }
+    resolveLocal(expr, innermost.get(name.lexeme));
   }
-}
\ No newline at end of file
+
+  // the innermost binding is the one in scope, no need to search the scopes
+  private void resolveLocal(Expr expr, Binding binding) {
+    if (binding == null) return;
+    // set the expr's depth and slot on the node itself
+    expr.depth = depth - 1 - binding.scope;
+    expr.slot = binding.slot;
+  }
+}
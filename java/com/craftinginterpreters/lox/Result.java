@@ -0,0 +1,48 @@
+/*
+ * Result: what running a script in a Context did
+ *
+ * - isSuccess(): it ran to the end
+ * - exitCode(): what the lox command would exit with, 0, 65(compile errors) or 70(runtime error)
+ * - errors(): the compile errors, or the runtime error, as Lox would print them
+ * - output(): what it printed, for a context with memory output(empty otherwise)
+ */
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+public final class Result {
+  static final int OK = 0;
+  static final int COMPILE_ERROR = 65;
+  static final int RUNTIME_ERROR = 70;
+
+  private final int exitCode;
+  private final List<String> errors;
+  private final String output;
+
+  Result(int exitCode, List<String> errors, String output) {
+    this.exitCode = exitCode;
+    this.errors = List.copyOf(errors);
+    this.output = output;
+  }
+
+  public boolean isSuccess() {
+    return exitCode == OK;
+  }
+
+  public int exitCode() {
+    return exitCode;
+  }
+
+  public List<String> errors() {
+    return errors;
+  }
+
+  public String output() {
+    return output;
+  }
+
+  @Override
+  public String toString() {
+    return isSuccess() ? "ok" : String.join("\n", errors);
+  }
+}
@@ -2,9 +2,23 @@ package com.craftinginterpreters.lox;
 
 class RuntimeError extends RuntimeException {
   final Token token;
+  // the module whose code threw it, null for the script's
+  private LoxModule module;
+  private boolean isLocated = false;
 
   RuntimeError(Token token, String message) {
     super(message);
     this.token = token;
   }
+
+  // the first code it leaves is where it was thrown(see LoxFunction.call)
+  void locate(LoxModule module) {
+    if (isLocated) return;
+    this.module = module;
+    isLocated = true;
+  }
+
+  LoxModule module() {
+    return module;
+  }
 }
@@ -1,57 +1,130 @@
 /*
  * Scan all words then output the keyword
+ *
+ * the source is scanned as utf-8 bytes, so long runs can be done a word
+ * (8 bytes) at a time:
+ * - whitespace: skip 8 spaces at once
+ * - comment: find the '\n' in 8 bytes at once
+ * - string: find the '"' and the '\n's in 8 bytes at once
+ * - identifier: find the first byte which isn't [a-zA-Z0-9_] in 8 bytes at once
+ * near the end of the source(less than 8 bytes) it goes byte by byte.
  */
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
 
 import static com.craftinginterpreters.lox.TokenType.*; // [static-import]
 
 class Scanner {
-  private static final Map<String, TokenType> keywords;
-  // 16 keywords
+  // ONES * b: every byte of the word is b
+  private static final long ONES = 0x0101010101010101L;
+  private static final long LOWS = 0x7F7F7F7F7F7F7F7FL;
+  private static final long HIGHS = 0x8080808080808080L;
+  private static final long SPACES = ONES * ' ';
+  private static final long NEWLINES = ONES * '\n';
+  private static final long QUOTES = ONES * '"';
+
+  // byte => can it be in an identifier
+  private static final boolean[] IDENTIFIER_PART = new boolean[256];
   static {
-    keywords = new HashMap<>();
-    keywords.put("and",    AND);
-    keywords.put("class",  CLASS);
-    keywords.put("else",   ELSE);
-    keywords.put("false",  FALSE);
-    keywords.put("for",    FOR);
-    keywords.put("fun",    FUN);
-    keywords.put("if",     IF);
-    keywords.put("nil",    NIL);
-    keywords.put("or",     OR);
-    keywords.put("print",  PRINT);
-    keywords.put("return", RETURN);
-    keywords.put("super",  SUPER);
-    keywords.put("this",   THIS);
-    keywords.put("true",   TRUE);
-    keywords.put("var",    VAR);
-    keywords.put("while",  WHILE);
-  }
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+    for (int c = 0; c < 128; c++) {
+      IDENTIFIER_PART[c] = isAlphaNumeric((char)c);
+    }
+  }
+
+  // little endian: the first byte is the lowest, so the first match is the lowest bit
+  private final ByteBuffer source;
+  private final int length;
+  private TokenBuffer tokens;
+  // where errors go, null: straight to Lox.error
+  private final Diagnostics diagnostics;
   private int start = 0;
   private int current = 0;
   private int line = 1;
 
   // initial Scanner with source code(string)
   Scanner(String source) {
-    this.source = source;
+    this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  // initial Scanner with source code(utf-8 bytes)
+  Scanner(ByteBuffer source) {
+    this(source, null);
+  }
+
+  Scanner(ByteBuffer source, Diagnostics diagnostics) {
+    this(source, 1, diagnostics);
+  }
+
+  // a file's source as the scanner takes it: utf-8 without a byte order mark.
+  // utf-8 and ascii files are mapped and scanned as they are, no string is made
+  static ByteBuffer read(Path path, Charset charset) throws IOException {
+    if (!charset.equals(StandardCharsets.UTF_8) && !charset.equals(StandardCharsets.US_ASCII)) {
+      String text = new String(Files.readAllBytes(path), charset);
+      return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    ByteBuffer source;
+    try (FileChannel channel = FileChannel.open(path)) {
+      source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    // skip the utf-8 byte order mark
+    if (source.limit() >= 3 && source.get(0) == (byte)0xEF
+        && source.get(1) == (byte)0xBB && source.get(2) == (byte)0xBF) {
+      source.position(3);
+      source = source.slice();
+    }
+    return source;
   }
 
-  // scan all tokens and add eof at the end of file, then return the token list
-  List<Token> scanTokens() {
+  // source is a part of a file which starts on line(see Document)
+  Scanner(ByteBuffer source, int line, Diagnostics diagnostics) {
+    this.diagnostics = diagnostics;
+    this.source = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    this.length = this.source.limit();
+    this.line = line;
+    this.tokens = new TokenBuffer(this.source, Math.max(16, length / 8), line);
+  }
+
+  // scan all tokens and add eof at the end of file, then return the token buffer
+  TokenBuffer scanTokens() {
     while (!isAtEnd()) {
       start = current;
       scanToken();
     }
 
     // the last token is eof
-    tokens.add(new Token(EOF, "", null, line));
+    tokens.add(EOF, current, 0);
+    return tokens;
+  }
+
+  // scan all tokens, hand them over every batchSize tokens, the last batch ends with eof
+  void scanTokens(BlockingQueue<TokenBuffer> batches, int batchSize) throws InterruptedException {
+    TokenBuffer batch;
+    do {
+      batch = scanBatch(batchSize);
+      batches.put(batch);
+    } while (batch.type(batch.size() - 1) != EOF);
+  }
+
+  // scan the next batchSize tokens, or the rest of them and eof
+  TokenBuffer scanBatch(int batchSize) {
+    // newlines from now on belong to this batch
+    tokens = new TokenBuffer(source, batchSize, line);
+    while (!isAtEnd() && tokens.size() < batchSize) {
+      start = current;
+      scanToken();
+    }
+
+    if (isAtEnd()) tokens.add(EOF, current, 0);
     return tokens;
   }
 
@@ -86,7 +159,7 @@ class Scanner {
       case '/':
         if (match('/')) {
           // A comment goes until the end of the line.
-          while (peek() != '\n' && !isAtEnd()) advance();
+          current = find(NEWLINES, current, length);
         } else {
           addToken(SLASH);
         }
@@ -95,13 +168,16 @@ class Scanner {
 //> whitespace
 
       case ' ':
+        // Ignore whitespace, a long run(e.g. indentation) goes a word at a time.
+        skipSpaces();
+        break;
       case '\r':
       case '\t':
         // Ignore whitespace.
         break;
 
       case '\n':
-        line++;
+        newline(current - 1);
         break;
 //> string-start
 
@@ -120,7 +196,11 @@ class Scanner {
           identifier();
 //< identifier-start
         } else {
-          Lox.error(line, "Unexpected character.");
+          // one error for a whole utf-8 character
+          if (c >= 0x80) {
+            while (!isAtEnd() && (peek() & 0xC0) == 0x80) advance();
+          }
+          error("Unexpected character.");
         }
 //< digit-start
         break;
@@ -130,12 +210,63 @@ class Scanner {
 
   //> identifier
   private void identifier() {
-    while (isAlphaNumeric(peek())) advance();
+    current = identifierEnd(current);
+    addToken(keyword());
+  }
+
+  // the keyword's type, or IDENTIFIER, without making a string of the lexeme
+  private TokenType keyword() {
+    switch (source.get(start)) {
+      case 'a': return checkKeyword(1, "nd", AND);
+      case 'c': return checkKeyword(1, "lass", CLASS);
+      case 'e': return checkKeyword(1, "lse", ELSE);
+      case 'f':
+        if (current - start > 1) {
+          switch (source.get(start + 1)) {
+            case 'a': return checkKeyword(2, "lse", FALSE);
+            case 'o': return checkKeyword(2, "r", FOR);
+            case 'u': return checkKeyword(2, "n", FUN);
+            default:
+          }
+        }
+        break;
+      case 'i':
+        if (current - start > 1) {
+          switch (source.get(start + 1)) {
+            case 'f': return checkKeyword(2, "", IF);
+            case 'm': return checkKeyword(2, "port", IMPORT);
+            default:
+          }
+        }
+        break;
+      case 'n': return checkKeyword(1, "il", NIL);
+      case 'o': return checkKeyword(1, "r", OR);
+      case 'p': return checkKeyword(1, "rint", PRINT);
+      case 'r': return checkKeyword(1, "eturn", RETURN);
+      case 's': return checkKeyword(1, "uper", SUPER);
+      case 't':
+        if (current - start > 1) {
+          switch (source.get(start + 1)) {
+            case 'h': return checkKeyword(2, "is", THIS);
+            case 'r': return checkKeyword(2, "ue", TRUE);
+            default:
+          }
+        }
+        break;
+      case 'v': return checkKeyword(1, "ar", VAR);
+      case 'w': return checkKeyword(1, "hile", WHILE);
+      default:
+    }
+    return IDENTIFIER;
+  }
 
-    String text = source.substring(start, current);
-    TokenType type = keywords.get(text);
-    if (type == null) type = IDENTIFIER;
-    addToken(type);
+  // is the rest of the lexeme(from offset) the rest of the keyword
+  private TokenType checkKeyword(int offset, String rest, TokenType type) {
+    if (current - start != offset + rest.length()) return IDENTIFIER;
+    for (int i = 0; i < rest.length(); i++) {
+      if (source.get(start + offset + i) != rest.charAt(i)) return IDENTIFIER;
+    }
+    return type;
   }
 
   //> number
@@ -150,34 +281,80 @@ class Scanner {
       while (isDigit(peek())) advance();
     }
 
-    addToken(NUMBER,
-        Double.parseDouble(source.substring(start, current)));
+    // the value is parsed from the lexeme when the parser asks for it
+    addToken(NUMBER);
   }
 
   //> string
   private void string() {
-    while (peek() != '"' && !isAtEnd()) {
-      if (peek() == '\n') line++;
-      advance();
+    int end = find(QUOTES, current, length);
+    for (int at = find(NEWLINES, current, end); at < end; at = find(NEWLINES, at + 1, end)) {
+      newline(at);
     }
+    current = end;
 
     if (isAtEnd()) {
-      Lox.error(line, "Unterminated string.");
+      error("Unterminated string.");
       return;
     }
 
     // The closing ".
     advance();
 
-    // Trim the surrounding quotes.
-    String value = source.substring(start + 1, current - 1);
-    addToken(STRING, value);
+    // the value(without quotes) is taken from the lexeme when the parser asks for it
+    addToken(STRING);
   }
 //< string
+
+  // word at a time helpers
+
+  // every byte of the word which is 0 gets its high bit set, others are 0
+  private static long zeros(long word) {
+    return ~(((word & LOWS) + LOWS) | word | LOWS);
+  }
+
+  // every byte of the word which is in [low, high] gets its high bit set, for bytes < 0x80
+  private static long between(long word, int low, int high) {
+    long bytes = word & LOWS;
+    return ((ONES * (127 + high + 1) - bytes) & ~word & (bytes + ONES * (127 - (low - 1)))) & HIGHS;
+  }
+
+  // the position of the first byte equals to pattern's byte in [from, to), or to
+  private int find(long pattern, int from, int to) {
+    while (from + 8 <= to) {
+      long found = zeros(source.getLong(from) ^ pattern);
+      if (found != 0) return from + (Long.numberOfTrailingZeros(found) >>> 3);
+      from += 8;
+    }
+    byte b = (byte)pattern;
+    while (from < to && source.get(from) != b) from++;
+    return from;
+  }
+
+  private void skipSpaces() {
+    while (current + 8 <= length && source.getLong(current) == SPACES) current += 8;
+    while (peek() == ' ') advance();
+  }
+
+  // the position of the first byte from which can't be in an identifier
+  private int identifierEnd(int from) {
+    while (from + 8 <= length) {
+      long word = source.getLong(from);
+      long part = between(word, '0', '9') | between(word, 'A', 'Z') |
+                  between(word, 'a', 'z') | zeros(word ^ (ONES * '_'));
+      // bytes >= 0x80 never are
+      long other = ~part & HIGHS;
+      if (other != 0) return from + (Long.numberOfTrailingZeros(other) >>> 3);
+      from += 8;
+    }
+    while (from < length && IDENTIFIER_PART[source.get(from) & 0xFF]) from++;
+    return from;
+  }
+
 //> match
   private boolean match(char expected) {
     if (isAtEnd()) return false;
-    if (source.charAt(current) != expected) return false;
+    if (source.get(current) != expected) return false;
 
     current++;
     return true;
@@ -186,47 +363,56 @@ class Scanner {
 //> peek
   private char peek() {
     if (isAtEnd()) return '\0';
-    return source.charAt(current);
+    return (char)(source.get(current) & 0xFF);
   }
 //< peek
 //> peek-next
   private char peekNext() {
-    if (current + 1 >= source.length()) return '\0';
-    return source.charAt(current + 1);
+    if (current + 1 >= length) return '\0';
+    return (char)(source.get(current + 1) & 0xFF);
   } // [peek-next]
 //< peek-next
 //> is-alpha
-  private boolean isAlpha(char c) {
+  private static boolean isAlpha(char c) {
     return (c >= 'a' && c <= 'z') ||
            (c >= 'A' && c <= 'Z') ||
             c == '_';
   }
 
-  private boolean isAlphaNumeric(char c) {
+  private static boolean isAlphaNumeric(char c) {
     return isAlpha(c) || isDigit(c);
   }
 //< is-alpha
 //> is-digit
-  private boolean isDigit(char c) {
+  private static boolean isDigit(char c) {
     return c >= '0' && c <= '9';
   } // [is-digit]
 //< is-digit
 //> is-at-end
   private boolean isAtEnd() {
-    return current >= source.length();
+    return current >= length;
   }
 //< is-at-end
 //> advance-and-add-token
   private char advance() {
-    return source.charAt(current++);
+    return (char)(source.get(current++) & 0xFF);
   }
 
   private void addToken(TokenType type) {
-    addToken(type, null);
+    tokens.add(type, start, current - start);
+  }
+
+  private void error(String message) {
+    if (diagnostics != null) {
+      diagnostics.error(line, current, message);
+    } else {
+      Lox.error(line, message);
+    }
   }
 
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+  // the tokens' lines are worked out from where the newlines are
+  private void newline(int offset) {
+    line++;
+    tokens.newline(offset);
   }
-}
\ No newline at end of file
+}
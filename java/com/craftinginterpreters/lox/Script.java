@@ -0,0 +1,46 @@
+/*
+ * Script: a compiled script of an Engine
+ *
+ * it can be run by any number of contexts(see Context.run), on any thread.
+ *
+ * - isValid(): has it no errors
+ * - errors(): the compile errors as Lox would print them, in source order
+ * - directory(): where its relative imports start(see Interpreter.importModule)
+ * - charset(): what its imported files are read in
+ */
+package com.craftinginterpreters.lox;
+
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.List;
+
+public final class Script {
+  // null if there are errors
+  final CompiledScript compiled;
+  private final List<String> errors;
+  private final Path directory;
+  private final Charset charset;
+
+  Script(CompiledScript compiled, List<String> errors, Path directory, Charset charset) {
+    this.compiled = compiled;
+    this.errors = errors == null ? List.of() : List.copyOf(errors);
+    this.directory = directory;
+    this.charset = charset;
+  }
+
+  public boolean isValid() {
+    return compiled != null;
+  }
+
+  public List<String> errors() {
+    return errors;
+  }
+
+  public Path directory() {
+    return directory;
+  }
+
+  public Charset charset() {
+    return charset;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * ScriptCache: resolved programs saved on disk, so an unchanged script
+ * isn't scanned, parsed and resolved again
+ *
+ * a program is saved as its flat ast(see FlatAst) in <directory>/<sha-256 of the source>.loxc,
+ * a changed source has another hash, so an old entry is never used for it.
+ *
+ * file: MAGIC, VERSION, the sha-256 of the flat ast's bytes, then the flat ast's bytes.
+ * an entry whose bytes don't match their hash, or which FlatAst finds bad, is made again.
+ *
+ * - key(bytebuffer source): the source's hash, in hex
+ * - digest(bytebuffer bytes): the bytes' sha-256
+ * - load(string key): the statements, null if there is no(usable) entry
+ * - store(string key, list<stmt> statements): save the resolved statements
+ */
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+class ScriptCache {
+  private static final int MAGIC = 0x4C4F5843; // "LOXC"
+  // change it whenever the ast or its encoding changes
+  private static final int VERSION = 3;
+  private static final int DIGEST_SIZE = 32;
+
+  private final Path directory;
+
+  ScriptCache(Path directory) {
+    this.directory = directory;
+  }
+
+  static String key(ByteBuffer source) {
+    StringBuilder key = new StringBuilder();
+    for (byte b : digest(source)) {
+      key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return key.toString();
+  }
+
+  static byte[] digest(ByteBuffer bytes) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException error) {
+      throw new IllegalStateException(error); // every java has sha-256
+    }
+    digest.update(bytes.duplicate());
+    return digest.digest();
+  }
+
+  List<Stmt> load(String key) throws IOException {
+    ByteBuffer bytes;
+    try (FileChannel channel = FileChannel.open(file(key))) {
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (NoSuchFileException error) {
+      return null;
+    }
+
+    // a broken or old entry is made again
+    try {
+      if (bytes.getInt() != MAGIC || bytes.getInt() != VERSION) return null;
+      byte[] hash = new byte[DIGEST_SIZE];
+      bytes.get(hash);
+      if (!MessageDigest.isEqual(hash, digest(bytes))) return null;
+      return FlatAst.read(bytes).decode();
+    } catch (BufferUnderflowException | IllegalArgumentException error) {
+      return null;
+    }
+  }
+
+  void store(String key, List<Stmt> statements) throws IOException {
+    ByteBuffer ast = FlatAst.encode(statements).write();
+    ByteBuffer header = ByteBuffer.allocate(8 + DIGEST_SIZE).putInt(MAGIC).putInt(VERSION).put(digest(ast));
+    header.flip();
+
+    // write a temporary file and move it, a reader never sees half an entry
+    Files.createDirectories(directory);
+    Path temporary = Files.createTempFile(directory, key, ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        while (header.hasRemaining()) channel.write(header);
+        while (ast.hasRemaining()) channel.write(ast);
+      }
+      Files.move(temporary, file(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  private Path file(String key) {
+    return directory.resolve(key + ".loxc");
+  }
+}
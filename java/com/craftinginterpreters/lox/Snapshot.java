@@ -0,0 +1,48 @@
+/*
+ * Snapshot: a context's globals, frozen to start other contexts from
+ *
+ * run a prelude of classes and functions once, take a snapshot, then every
+ * context made from it(see Engine.newContext) starts with them defined, without
+ * running the prelude again. the snapshot's globals are shared by the contexts
+ * and never change, a context which assigns one gets its own copy of that global.
+ *
+ * the values are shared too, so only values which don't change can be in a
+ * snapshot: nil, booleans, numbers, strings, and the classes and functions
+ * declared at top-level. an instance, or a closure which keeps local variables,
+ * could be changed by one context under the others.
+ */
+package com.craftinginterpreters.lox;
+
+import java.util.Map;
+
+public final class Snapshot {
+  final Map<String, Object> globals;
+
+  private Snapshot(Map<String, Object> globals) {
+    this.globals = globals;
+  }
+
+  // throws IllegalStateException if a global can't be shared
+  static Snapshot of(Environment.Global globals) {
+    Map<String, Object> values = globals.snapshot();
+    for (Map.Entry<String, Object> global : values.entrySet()) {
+      if (!isShareable(global.getValue())) {
+        throw new IllegalStateException(
+            "Global '" + global.getKey() + "' can't be shared, only classes, functions and plain values can be in a snapshot.");
+      }
+    }
+    return new Snapshot(values);
+  }
+
+  private static boolean isShareable(Object value) {
+    if (value instanceof LoxFunction) return ((LoxFunction)value).isShareable();
+    if (value instanceof LoxClass) return ((LoxClass)value).isShareable();
+    if (value instanceof LoxInstance || value instanceof LoxModule) return false;
+    // natives(e.g. clock) keep nothing
+    return true;
+  }
+
+  Environment.Global fork() {
+    return new Environment.Global(globals);
+  }
+}
@@ -5,6 +5,7 @@
  * - Expression: expression(expr) [what meanning of this]
  * - Function: name(token), params(list<token>), body(list<stmt>)
  * - If: condition(expr), thenbranch(stmt), elsebranch(stmt)
+ * - Import: keyword(token), path(token), name(token)
  * - Print: expression(expr)
  * - Return: keyword(token), value(expr)
  * - Variable: name(token), initializer(expr)
@@ -14,13 +15,38 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Stmt {
+abstract sealed class Stmt {
+  static final int BLOCK = 0;
+  static final int CLASS = 1;
+  static final int EXPRESSION = 2;
+  static final int FUNCTION = 3;
+  static final int IF = 4;
+  static final int IMPORT = 5;
+  static final int PRINT = 6;
+  static final int RETURN = 7;
+  static final int VAR = 8;
+  static final int WHILE = 9;
+
+  final int kind;
+
+  // slot of the declared name in its scope, -1 means global
+  int slot = -1;
+  // number of slots in the scope this statement opens
+  int locals = 0;
+  // the function's frame may be captured by a closure
+  boolean escapes = true;
+
+  Stmt(int kind) {
+    this.kind = kind;
+  }
+
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
     R visitFunctionStmt(Function stmt);
     R visitIfStmt(If stmt);
+    R visitImportStmt(Import stmt);
     R visitPrintStmt(Print stmt);
     R visitReturnStmt(Return stmt);
     R visitVarStmt(Var stmt);
@@ -29,8 +55,9 @@ abstract class Stmt {
 
   // Nested Stmt classes here...
 //> stmt-block
-  static class Block extends Stmt {
+  static final class Block extends Stmt {
     Block(List<Stmt> statements) {
+      super(BLOCK);
       this.statements = statements;
     }
 
@@ -43,8 +70,9 @@ abstract class Stmt {
   }
 
 //> stmt-class
-  static class Class extends Stmt {
+  static final class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
+      super(CLASS);
       this.name = name;
       this.superclass = superclass;
       this.methods = methods;
@@ -61,8 +89,9 @@ abstract class Stmt {
   }
 
 //> stmt-expression
-  static class Expression extends Stmt {
+  static final class Expression extends Stmt {
     Expression(Expr expression) {
+      super(EXPRESSION);
       this.expression = expression;
     }
 
@@ -75,8 +104,9 @@ abstract class Stmt {
   }
 
 //> stmt-function
-  static class Function extends Stmt {
+  static final class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body) {
+      super(FUNCTION);
       this.name = name;
       this.params = params;
       this.body = body;
@@ -93,8 +123,9 @@ abstract class Stmt {
   }
   
 //> stmt-if
-  static class If extends Stmt {
+  static final class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+      super(IF);
       this.condition = condition;
       this.thenBranch = thenBranch;
       this.elseBranch = elseBranch;
@@ -110,9 +141,29 @@ abstract class Stmt {
     final Stmt elseBranch;
   }
 
+//> stmt-import
+  static final class Import extends Stmt {
+    Import(Token keyword, Token path, Token name) {
+      super(IMPORT);
+      this.keyword = keyword;
+      this.path = path;
+      this.name = name;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+
+    final Token keyword;
+    final Token path;
+    final Token name;
+  }
+
 //> stmt-print
-  static class Print extends Stmt {
+  static final class Print extends Stmt {
     Print(Expr expression) {
+      super(PRINT);
       this.expression = expression;
     }
 
@@ -125,8 +176,9 @@ abstract class Stmt {
   }
 
 //> stmt-return
-  static class Return extends Stmt {
+  static final class Return extends Stmt {
     Return(Token keyword, Expr value) {
+      super(RETURN);
       this.keyword = keyword;
       this.value = value;
     }
@@ -141,8 +193,9 @@ abstract class Stmt {
   }
 
 //> stmt-var
-  static class Var extends Stmt {
+  static final class Var extends Stmt {
     Var(Token name, Expr initializer) {
+      super(VAR);
       this.name = name;
       this.initializer = initializer;
     }
@@ -157,8 +210,9 @@ abstract class Stmt {
   }
 
 //> stmt-while
-  static class While extends Stmt {
+  static final class While extends Stmt {
     While(Expr condition, Stmt body) {
+      super(WHILE);
       this.condition = condition;
       this.body = body;
     }
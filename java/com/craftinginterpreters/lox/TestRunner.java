@@ -0,0 +1,182 @@
+/*
+ * TestRunner: compile and run a directory of test scripts at the same time in one jvm, and
+ * check what they do against the expectations written in them
+ *
+ * every test runs in its own context(see Batch), the comments say what it must do:
+ * - // expect: <output>                the next line it prints
+ * - // expect runtime error: <message> it stops with this runtime error on this line
+ * - // Error at '<token>': <message>   a compile error on this line
+ * - // [line N] Error...               a compile error on line N(also [java line N])
+ *
+ * - TestRunner(list<path> paths): the tests are the .lox files in paths(or the paths)
+ * - run(): run them all, print the failures, the timing and the slowest tests,
+ *   return whether they all passed
+ */
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class TestRunner {
+  private static final Pattern EXPECT_OUTPUT = Pattern.compile("// expect: ?(.*)");
+  private static final Pattern EXPECT_RUNTIME_ERROR = Pattern.compile("// expect runtime error: (.+)");
+  private static final Pattern EXPECT_ERROR = Pattern.compile("// (Error.*)");
+  private static final Pattern EXPECT_ERROR_LINE = Pattern.compile("// \\[(?:java )?line (\\d+)\\] (Error.*)");
+  private static final int SLOWEST = 10;
+
+  private final List<Path> paths;
+
+  TestRunner(List<Path> paths) {
+    this.paths = paths;
+  }
+
+  boolean run() throws IOException {
+    List<Path> tests = discover();
+    Engine engine = new Engine();
+    List<Test> runs = new ArrayList<>();
+    long start = System.nanoTime();
+    try (Batch batch = new Batch(engine)) {
+      // every test is compiled at the same time too, and runs as soon as it's compiled
+      List<CompletableFuture<Test>> submits = new ArrayList<>();
+      for (Path path : tests) {
+        submits.add(CompletableFuture.supplyAsync(() -> new Test(engine, path)).thenApply(test -> {
+          test.run = batch.submit(test.path.toString(), test.script);
+          return test;
+        }));
+      }
+      // every run is submitted before the batch is closed
+      for (CompletableFuture<Test> submit : submits) runs.add(join(submit));
+    }
+    long elapsed = System.nanoTime() - start;
+
+    int failed = 0;
+    for (Test test : runs) {
+      List<String> failures = test.check(test.run.join().result());
+      if (failures.isEmpty()) continue;
+      failed++;
+      System.out.println("FAIL " + test.path);
+      for (String failure : failures) System.out.println("  " + failure);
+    }
+
+    System.out.println();
+    System.out.println("Slowest:");
+    runs.stream()
+        .sorted(Comparator.comparingLong((Test test) -> test.run.join().nanos()).reversed())
+        .limit(SLOWEST)
+        .forEach(test -> System.out.printf("  %9.3f ms  %s%n", test.run.join().nanos() / 1e6, test.path));
+    System.out.printf("%d tests, %d passed, %d failed, %.3f ms%n",
+        runs.size(), runs.size() - failed, failed, elapsed / 1e6);
+    return failed == 0;
+  }
+
+  // a test that can't be read stops the run with its IOException
+  private static Test join(CompletableFuture<Test> compile) throws IOException {
+    try {
+      return compile.join();
+    } catch (CompletionException error) {
+      if (error.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException)error.getCause()).getCause();
+      }
+      throw error;
+    }
+  }
+
+  // the .lox files in the directories, in order, a file is a test even if it's named otherwise
+  private List<Path> discover() throws IOException {
+    List<Path> tests = new ArrayList<>();
+    for (Path path : paths) {
+      if (!Files.isDirectory(path)) {
+        tests.add(path);
+        continue;
+      }
+      try (Stream<Path> files = Files.walk(path)) {
+        tests.addAll(files.filter(file -> file.toString().endsWith(".lox") && Files.isRegularFile(file))
+            .sorted()
+            .collect(Collectors.toList()));
+      }
+    }
+    return tests;
+  }
+
+  private static final class Test {
+    final Path path;
+    final Script script;
+    final List<String> output = new ArrayList<>();
+    final List<String> errors = new ArrayList<>();
+    int exitCode = Result.OK;
+    CompletableFuture<Batch.Run> run;
+
+    Test(Engine engine, Path path) {
+      this.path = path;
+      String source;
+      try {
+        source = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+      } catch (IOException error) {
+        throw new UncheckedIOException(error);
+      }
+      this.script = engine.compile(source, path.toAbsolutePath().getParent());
+      String[] lines = source.split("\\R", -1);
+      for (int i = 0; i < lines.length; i++) {
+        int line = i + 1;
+        Matcher match = EXPECT_OUTPUT.matcher(lines[i]);
+        if (match.find()) {
+          output.add(match.group(1));
+          continue;
+        }
+        match = EXPECT_RUNTIME_ERROR.matcher(lines[i]);
+        if (match.find()) {
+          errors.add(match.group(1) + "\n[line " + line + "]");
+          exitCode = Result.RUNTIME_ERROR;
+          continue;
+        }
+        match = EXPECT_ERROR_LINE.matcher(lines[i]);
+        if (match.find()) {
+          errors.add("[line " + match.group(1) + "] " + match.group(2));
+          exitCode = Result.COMPILE_ERROR;
+          continue;
+        }
+        match = EXPECT_ERROR.matcher(lines[i]);
+        if (match.find()) {
+          errors.add("[line " + line + "] " + match.group(1));
+          exitCode = Result.COMPILE_ERROR;
+        }
+      }
+    }
+
+    // what's wrong, empty if it passed
+    List<String> check(Result result) {
+      List<String> failures = new ArrayList<>();
+      List<String> printed = result.output().lines().collect(Collectors.toList());
+      for (int i = 0; i < Math.max(output.size(), printed.size()); i++) {
+        String expected = i < output.size() ? output.get(i) : null;
+        String actual = i < printed.size() ? printed.get(i) : null;
+        if (expected == null) {
+          failures.add("Got output '" + actual + "' when none was expected.");
+        } else if (actual == null) {
+          failures.add("Missing expected output '" + expected + "'.");
+        } else if (!expected.equals(actual)) {
+          failures.add("Expected output '" + expected + "' and got '" + actual + "'.");
+        }
+      }
+      if (!errors.equals(result.errors())) {
+        failures.add("Expected errors " + errors + " and got " + result.errors() + ".");
+      }
+      if (exitCode != result.exitCode()) {
+        failures.add("Expected exit code " + exitCode + " and got " + result.exitCode() + ".");
+      }
+      return failures;
+    }
+  }
+}
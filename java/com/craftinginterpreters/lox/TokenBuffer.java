@@ -0,0 +1,135 @@
+/*
+ * TokenBuffer: the scanned tokens, kept as parallel arrays over the source
+ * instead of a Token object(with its lexeme and literal) for every token.
+ *
+ * attributes:
+ * - source(bytebuffer): utf-8
+ * - types(byte[]): token type's ordinal
+ * - starts(int[]), lengths(int[]): where the lexeme is in source
+ * - newlines(int[]): offset of every '\n' in source, to work out the lines
+ * - firstLine(int): the line of the first token, a batch of tokens(see Scanner) starts later
+ *
+ * methods:
+ * - add(type, start, length): add a token at the end
+ * - newline(int offset): there is a '\n' at offset
+ * - size(): the number of tokens
+ * - type(int i)/line(int i): the token's type and line
+ * - start(int i)/end(int i): where the token is in source
+ * - lexeme(int i)/literal(int i): made from the source only when asked
+ * - token(int i): make the Token object, for the ast and errors
+ */
+package com.craftinginterpreters.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+class TokenBuffer {
+  private static final TokenType[] TYPES = TokenType.values();
+
+  private final ByteBuffer source;
+  private final int firstLine;
+  private byte[] types;
+  private int[] starts;
+  private int[] lengths;
+  private int size = 0;
+  private int[] newlines = new int[64];
+  private int newlineCount = 0;
+
+  TokenBuffer(ByteBuffer source) {
+    // about a token every 8 bytes, grow if there are more
+    this(source, Math.max(16, source.limit() / 8), 1);
+  }
+
+  TokenBuffer(ByteBuffer source, int capacity, int firstLine) {
+    this.source = source;
+    this.firstLine = firstLine;
+    types = new byte[capacity];
+    starts = new int[capacity];
+    lengths = new int[capacity];
+  }
+
+  void add(TokenType type, int start, int length) {
+    if (size == types.length) {
+      int capacity = size * 2;
+      types = Arrays.copyOf(types, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+    }
+    types[size] = (byte)type.ordinal();
+    starts[size] = start;
+    lengths[size] = length;
+    size++;
+  }
+
+  // newlines come in order of their offsets
+  void newline(int offset) {
+    if (newlineCount == newlines.length) {
+      newlines = Arrays.copyOf(newlines, newlineCount * 2);
+    }
+    newlines[newlineCount++] = offset;
+  }
+
+  int size() {
+    return size;
+  }
+
+  TokenType type(int i) {
+    return TYPES[types[i]];
+  }
+
+  int start(int i) {
+    return starts[i];
+  }
+
+  int end(int i) {
+    return starts[i] + lengths[i];
+  }
+
+  // the line where the token ends(a string can have newlines in it):
+  // firstLine + the number of newlines before its end
+  int line(int i) {
+    int end = starts[i] + lengths[i];
+    int low = 0;
+    int high = newlineCount;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (newlines[middle] < end) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return firstLine + low;
+  }
+
+  String lexeme(int i) {
+    return text(starts[i], lengths[i]);
+  }
+
+  // number: its double value, string: the text without quotes
+  Object literal(int i) {
+    switch (type(i)) {
+      case NUMBER:
+        return Double.parseDouble(lexeme(i));
+      case STRING:
+        return text(starts[i] + 1, lengths[i] - 2);
+      default:
+        return null;
+    }
+  }
+
+  Token token(int i) {
+    return new Token(type(i), lexeme(i), literal(i), line(i));
+  }
+
+  // decode length bytes from start
+  private String text(int start, int length) {
+    if (source.hasArray()) {
+      return new String(source.array(), source.arrayOffset() + start, length, StandardCharsets.UTF_8);
+    }
+    byte[] bytes = new byte[length];
+    source.get(start, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
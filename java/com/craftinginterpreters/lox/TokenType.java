@@ -15,8 +15,8 @@ enum TokenType {
   // Literals(3)
   IDENTIFIER, STRING, NUMBER, // identifer string number
 
-  // Keywords(16)
-  AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR, // and class else false fun for if nil or
+  // Keywords(17)
+  AND, CLASS, ELSE, FALSE, FUN, FOR, IF, IMPORT, NIL, OR, // and class else false fun for if import nil or
   PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,   // print return super this true var while
 
   EOF // eof
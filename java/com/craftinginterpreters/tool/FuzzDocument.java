@@ -0,0 +1,68 @@
+package com.craftinginterpreters.tool;
+
+import com.craftinginterpreters.lox.Document;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+
+// applies random edits to a Document and checks that every edited document has
+// the same text and diagnostics as a document parsed from scratch
+public class FuzzDocument {
+  // bits of Lox the edits insert, with the ones that leave things broken
+  private static final String[] pieces = {
+    "{", "}", "(", ")", ";", "\"", "\n", " ", "@", "x", "1", "+", "else",
+    "var x = 1;", "print x;", "return 1;", "// c\n", "\"s\n\"",
+    "fun f(a) { return a; }", "class C < B { m() { return super.m(); } }",
+    "if (x) print 1; else print 2;", "else print 3;", "{ var y = y; }",
+    "while (true) {}", "for (var i = 0; i < 2; i = i + 1) print i;"
+  };
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2 || args.length > 3) {
+      System.err.println("Usage: fuzz_document <seed> <edits> [file]");
+      System.exit(64);
+    }
+    Random random = new Random(Long.parseLong(args[0]));
+    int edits = Integer.parseInt(args[1]);
+    String text = args.length == 3
+        ? new String(Files.readAllBytes(Paths.get(args[2])), StandardCharsets.UTF_8)
+        : "";
+
+    Document document = new Document(text);
+    int failures = 0;
+    for (int i = 0; i < edits; i++) {
+      int start = random.nextInt(text.length() + 1);
+      int end = Math.min(text.length(),
+          start + (random.nextInt(4) == 0 ? random.nextInt(20) : 0));
+      String replacement = random.nextInt(3) == 0
+          ? "" : pieces[random.nextInt(pieces.length)];
+
+      String before = text;
+      document.edit(start, end, replacement);
+      text = text.substring(0, start) + replacement + text.substring(end);
+
+      List<String> expected = new Document(text).diagnostics();
+      if (document.text().equals(text) && document.diagnostics().equals(expected)) {
+        continue;
+      }
+      failures++;
+      System.out.println("edit " + i + ": [" + start + ", " + end + ") -> " +
+          quote(replacement) + " in " + quote(before));
+      System.out.println("  incremental " + document.diagnostics());
+      System.out.println("  fresh       " + expected);
+      // the next edits would only repeat this one
+      document = new Document(text);
+    }
+
+    System.out.println(failures + " of " + edits + " edits differ.");
+    if (failures > 0) System.exit(1);
+  }
+
+  private static String quote(String text) {
+    return "\"" + text.replace("\\", "\\\\").replace("\n", "\\n")
+        .replace("\"", "\\\"") + "\"";
+  }
+}
@@ -7,12 +7,17 @@ import java.util.Arrays;
 import java.util.List;
 
 public class GenerateAst {
+  // --sealed: emit sealed classes with a node kind and metadata fields
+  private static boolean sealed = false;
+
   public static void main(String[] args) throws IOException {
-    if (args.length != 1) {
-      System.err.println("Usage: generate_ast <output directory>");
+    if (args.length == 2 && args[0].equals("--sealed")) {
+      sealed = true;
+    } else if (args.length != 1) {
+      System.err.println("Usage: generate_ast [--sealed] <output directory>");
       System.exit(64);
     }
-    String outputDir = args[0];
+    String outputDir = args[args.length - 1];
 //> call-define-ast
     defineAst(outputDir, "Expr", Arrays.asList(
 //> Statements and State assign-expr
@@ -46,6 +51,9 @@ public class GenerateAst {
       "Unary    : Token operator, Expr right",
       "Variable : Token name"
 //< Statements and State var-expr
+    ), Arrays.asList(
+      "int depth = -1 : resolved distance to the variable's scope, -1 means global",
+      "int slot = -1 : resolved slot of the variable in that scope"
     ));
 //> Statements and State stmt-ast
 
@@ -69,6 +77,7 @@ public class GenerateAst {
       "If         : Expr condition, Stmt thenBranch," +
                   " Stmt elseBranch",
 //< Control Flow if-ast
+      "Import     : Token keyword, Token path, Token name",
 /* Statements and State stmt-ast < Statements and State var-stmt-ast
       "Print      : Expr expression"
 */
@@ -85,14 +94,18 @@ public class GenerateAst {
       "Var        : Token name, Expr initializer",
       "While      : Expr condition, Stmt body"
 //< Control Flow while-ast
+    ), Arrays.asList(
+      "int slot = -1 : slot of the declared name in its scope, -1 means global",
+      "int locals = 0 : number of slots in the scope this statement opens",
+      "boolean escapes = true : the function's frame may be captured by a closure"
     ));
 //< Statements and State stmt-ast
 //< call-define-ast
   }
 //> define-ast
   private static void defineAst(
-      String outputDir, String baseName, List<String> types)
-      throws IOException {
+      String outputDir, String baseName, List<String> types,
+      List<String> metadata) throws IOException {
     String path = outputDir + "/" + baseName + ".java";
     PrintWriter writer = new PrintWriter(path, "UTF-8");
 
@@ -103,7 +116,13 @@ public class GenerateAst {
     writer.println();
     writer.println("import java.util.List;");
     writer.println();
-    writer.println("abstract class " + baseName + " {");
+    if (sealed) {
+      // the permitted subclasses are the nested classes below
+      writer.println("abstract sealed class " + baseName + " {");
+      defineKinds(writer, baseName, types, metadata);
+    } else {
+      writer.println("abstract class " + baseName + " {");
+    }
 
 //> call-define-visitor
     defineVisitor(writer, baseName, types);
@@ -135,6 +154,33 @@ public class GenerateAst {
     writer.close();
   }
 //< define-ast
+  // node kinds are dense from 0, so interpreters can switch on them
+  private static void defineKinds(
+      PrintWriter writer, String baseName, List<String> types,
+      List<String> metadata) {
+    for (int i = 0; i < types.size(); i++) {
+      String typeName = types.get(i).split(":")[0].trim();
+      writer.println("  static final int " + typeName.toUpperCase() +
+          " = " + i + ";");
+    }
+    writer.println();
+    writer.println("  final int kind;");
+
+    if (!metadata.isEmpty()) {
+      // Mutable fields filled by later passes.
+      writer.println();
+      for (String field : metadata) {
+        writer.println("  // " + field.split(" : ")[1].trim());
+        writer.println("  " + field.split(" : ")[0].trim() + ";");
+      }
+    }
+
+    writer.println();
+    writer.println("  " + baseName + "(int kind) {");
+    writer.println("    this.kind = kind;");
+    writer.println("  }");
+    writer.println();
+  }
 //> define-visitor
   private static void defineVisitor(
       PrintWriter writer, String baseName, List<String> types) {
@@ -157,8 +203,8 @@ public class GenerateAst {
     writer.println("//> " +
         baseName.toLowerCase() + "-" + className.toLowerCase());
 //< omit
-    writer.println("  static class " + className + " extends " +
-        baseName + " {");
+    writer.println("  static " + (sealed ? "final " : "") + "class " +
+        className + " extends " + baseName + " {");
 
 //> omit
     // Hack. Stmt.Class has such a long constructor that it overflows
@@ -174,6 +220,9 @@ public class GenerateAst {
 //> omit
     fieldList = fieldList.replace(",\n          ", ", ");
 //< omit
+    if (sealed) {
+      writer.println("      super(" + className.toUpperCase() + ");");
+    }
     // Store parameters in fields.
     String[] fields = fieldList.split(", ");
     for (String field : fields) {